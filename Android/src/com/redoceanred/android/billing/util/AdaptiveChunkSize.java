@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+/**
+ * Chunk size for batched service requests, tuned from how the requests go. A chunk that
+ * comes back faster than the target latency lets the size grow by one (up to the
+ * maximum); a slow one shrinks it by a quarter and a failed one halves it. This keeps
+ * requests as large as the service handles comfortably on the current device and
+ * network. Thread-safe.
+ */
+final class AdaptiveChunkSize {
+    private final int mMin;
+    private int mMax;
+    private long mTargetMillis;
+    private boolean mAdaptive = true;
+    private int mSize;
+
+    AdaptiveChunkSize(int min, int max, long targetMillis) {
+        mMin = min;
+        mMax = max;
+        mTargetMillis = targetMillis;
+        mSize = max;
+    }
+
+    /** Returns the chunk size to use for the next batch. */
+    synchronized int get() {
+        return mSize;
+    }
+
+    /**
+     * Sets the largest chunk size and starts from there again.
+     *
+     * @param adaptive if false, always use max
+     */
+    synchronized void set(int max, boolean adaptive) {
+        mMax = Math.max(mMin, max);
+        mSize = mMax;
+        mAdaptive = adaptive;
+    }
+
+    synchronized void setTargetLatency(long targetMillis) {
+        mTargetMillis = targetMillis;
+    }
+
+    /**
+     * Records the outcome of one request.
+     *
+     * @param chunkSize how many items the request had
+     * @param elapsedMillis how long it took
+     * @param success whether the service answered it
+     */
+    synchronized void record(int chunkSize, long elapsedMillis, boolean success) {
+        if (!mAdaptive) return;
+        if (!success) {
+            mSize = Math.max(mMin, Math.min(mSize, chunkSize) / 2);
+        }
+        else if (elapsedMillis > mTargetMillis) {
+            mSize = Math.max(mMin, Math.min(mSize, chunkSize) * 3 / 4);
+        }
+        else if (chunkSize >= mSize) {
+            // Only a full chunk tells us the current size is comfortable.
+            mSize = Math.min(mMax, mSize + 1);
+        }
+    }
+}
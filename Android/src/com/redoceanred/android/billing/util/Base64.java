@@ -46,7 +46,7 @@ public class Base64 {
     public final static boolean DECODE = false;
 
     /** The equals sign (=) as a byte. */
-    private final static byte EQUALS_SIGN = (byte) '=';
+    final static byte EQUALS_SIGN = (byte) '=';
 
     /** The new line character (\n) as a byte. */
     private final static byte NEW_LINE = (byte) '\n';
@@ -54,7 +54,7 @@ public class Base64 {
     /**
      * The 64 valid Base64 values.
      */
-    private final static byte[] ALPHABET =
+    final static byte[] ALPHABET =
         {(byte) 'A', (byte) 'B', (byte) 'C', (byte) 'D', (byte) 'E', (byte) 'F',
         (byte) 'G', (byte) 'H', (byte) 'I', (byte) 'J', (byte) 'K',
         (byte) 'L', (byte) 'M', (byte) 'N', (byte) 'O', (byte) 'P',
@@ -72,7 +72,7 @@ public class Base64 {
     /**
      * The 64 valid web safe Base64 values.
      */
-    private final static byte[] WEBSAFE_ALPHABET =
+    final static byte[] WEBSAFE_ALPHABET =
         {(byte) 'A', (byte) 'B', (byte) 'C', (byte) 'D', (byte) 'E', (byte) 'F',
         (byte) 'G', (byte) 'H', (byte) 'I', (byte) 'J', (byte) 'K',
         (byte) 'L', (byte) 'M', (byte) 'N', (byte) 'O', (byte) 'P',
@@ -91,7 +91,7 @@ public class Base64 {
      * Translates a Base64 value to either its 6-bit reconstruction value
      * or a negative number indicating some other meaning.
      **/
-    private final static byte[] DECODABET = {-9, -9, -9, -9, -9, -9, -9, -9, -9, // Decimal  0 -  8
+    final static byte[] DECODABET = {-9, -9, -9, -9, -9, -9, -9, -9, -9, // Decimal  0 -  8
         -5, -5, // Whitespace: Tab and Linefeed
         -9, -9, // Decimal 11 - 12
         -5, // Whitespace: Carriage Return
@@ -125,7 +125,7 @@ public class Base64 {
     };
 
     /** The web safe decodabet */
-    private final static byte[] WEBSAFE_DECODABET =
+    final static byte[] WEBSAFE_DECODABET =
         {-9, -9, -9, -9, -9, -9, -9, -9, -9, // Decimal  0 -  8
         -5, -5, // Whitespace: Tab and Linefeed
         -9, -9, // Decimal 11 - 12
@@ -161,14 +161,37 @@ public class Base64 {
         };
 
     // Indicates white space in encoding
-    private final static byte WHITE_SPACE_ENC = -5;
+    final static byte WHITE_SPACE_ENC = -5;
     // Indicates equals sign in encoding
-    private final static byte EQUALS_SIGN_ENC = -1;
+    final static byte EQUALS_SIGN_ENC = -1;
+
+    /**
+     * Lookup tables for the decoding fast path, one set per decodabet. Entry
+     * [k][b] holds the 6-bit value of input byte b already shifted into place
+     * for position k of a quantum, so a quantum decodes to
+     * {@code t[0][b0] | t[1][b1] | t[2][b2] | t[3][b3]}. Anything that is not
+     * a plain alphabet character (white space, '=', junk) maps to -1, which
+     * makes the combined value negative.
+     */
+    private final static int[][] FAST_DECODE = fastDecodeTables(DECODABET);
+    private final static int[][] WEBSAFE_FAST_DECODE = fastDecodeTables(WEBSAFE_DECODABET);
 
     /** Defeats instantiation. */
     private Base64() {
     }
 
+    private static int[][] fastDecodeTables(byte[] decodabet) {
+        int[][] tables = new int[4][256];
+        for (int b = 0; b < 256; b++) {
+            // The slow path only looks at the low seven bits of each byte; so do we.
+            byte value = decodabet[b & 0x7f];
+            for (int k = 0; k < 4; k++) {
+                tables[k][b] = value < 0 ? -1 : value << (18 - 6 * k);
+            }
+        }
+        return tables;
+    }
+
     /* ********  E N C O D I N G   M E T H O D S  ******** */
 
     /**
@@ -271,19 +294,88 @@ public class Base64 {
      */
     public static String encode(byte[] source, int off, int len, byte[] alphabet,
             boolean doPadding) {
-        byte[] outBuff = encode(source, off, len, alphabet, Integer.MAX_VALUE);
-        int outLen = outBuff.length;
-
-        // If doPadding is false, set length to truncate '='
-        // padding characters
-        while (doPadding == false && outLen > 0) {
-            if (outBuff[outLen - 1] != '=') {
-                break;
-            }
-            outLen -= 1;
+        byte[] outBuff = new byte[encodedLength(len, doPadding)];
+        int outLen = encodeInto(source, off, len, alphabet, doPadding, outBuff, 0);
+        return new String(outBuff, 0, outLen);
+    }
+
+    /**
+     * Returns the exact number of Base64 characters needed to encode
+     * <var>len</var> bytes, without line breaks.
+     *
+     * @param len length of data to convert
+     * @param doPadding is {@code true} if the result will be padded with '=' chars
+     */
+    public static int encodedLength(int len, boolean doPadding) {
+        if (doPadding) return (len + 2) / 3 * 4;
+        return len / 3 * 4 + (len % 3 == 0 ? 0 : len % 3 + 1);
+    }
+
+    /**
+     * Encodes a byte array into Base64 notation in a caller-supplied array,
+     * without line breaks. <var>destination</var> must have room for
+     * {@link #encodedLength encodedLength(len, true)} bytes starting at
+     * <var>destOffset</var>.
+     *
+     * @param source the data to convert
+     * @param off offset in array where conversion should begin
+     * @param len length of data to convert
+     * @param destination the array to hold the encoded data
+     * @param destOffset the index where output will be put
+     * @return the number of bytes written
+     */
+    public static int encodeInto(byte[] source, int off, int len, byte[] destination,
+            int destOffset) {
+        return encodeInto(source, off, len, ALPHABET, true, destination, destOffset);
+    }
+
+    /**
+     * Encodes a byte array into Base64 notation in a caller-supplied array,
+     * without line breaks. <var>destination</var> must have room for
+     * {@link #encodedLength encodedLength(len, doPadding)} bytes starting at
+     * <var>destOffset</var>.
+     *
+     * @param source the data to convert
+     * @param off offset in array where conversion should begin
+     * @param len length of data to convert
+     * @param alphabet the encoding alphabet
+     * @param doPadding is {@code true} to pad result with '=' chars
+     * if it does not fall on 3 byte boundaries
+     * @param destination the array to hold the encoded data
+     * @param destOffset the index where output will be put
+     * @return the number of bytes written
+     */
+    public static int encodeInto(byte[] source, int off, int len, byte[] alphabet,
+            boolean doPadding, byte[] destination, int destOffset) {
+        int d = 0;
+        int e = destOffset;
+        int len2 = len - 2;
+        for (; d < len2; d += 3, e += 4) {
+            int inBuff =
+                    ((source[d + off] << 24) >>> 8)
+                    | ((source[d + 1 + off] << 24) >>> 16)
+                    | ((source[d + 2 + off] << 24) >>> 24);
+            destination[e] = alphabet[(inBuff >>> 18)];
+            destination[e + 1] = alphabet[(inBuff >>> 12) & 0x3f];
+            destination[e + 2] = alphabet[(inBuff >>> 6) & 0x3f];
+            destination[e + 3] = alphabet[(inBuff) & 0x3f];
         }
 
-        return new String(outBuff, 0, outLen);
+        int remaining = len - d;
+        if (remaining > 0) {
+            if (doPadding) {
+                encode3to4(source, d + off, remaining, destination, e, alphabet);
+                e += 4;
+            } else {
+                // Same as above, minus the trailing '=' characters.
+                int inBuff = ((source[d + off] << 24) >>> 8)
+                        | (remaining > 1 ? ((source[d + 1 + off] << 24) >>> 16) : 0);
+                destination[e++] = alphabet[(inBuff >>> 18)];
+                destination[e++] = alphabet[(inBuff >>> 12) & 0x3f];
+                if (remaining > 1) destination[e++] = alphabet[(inBuff >>> 6) & 0x3f];
+            }
+        }
+        return e - destOffset;
     }
 
     /**
@@ -349,65 +441,6 @@ public class Base64 {
     /* ********  D E C O D I N G   M E T H O D S  ******** */
 
 
-    /**
-     * Decodes four bytes from array <var>source</var>
-     * and writes the resulting bytes (up to three of them)
-     * to <var>destination</var>.
-     * The source and destination arrays can be manipulated
-     * anywhere along their length by specifying
-     * <var>srcOffset</var> and <var>destOffset</var>.
-     * This method does not check to make sure your arrays
-     * are large enough to accommodate <var>srcOffset</var> + 4 for
-     * the <var>source</var> array or <var>destOffset</var> + 3 for
-     * the <var>destination</var> array.
-     * This method returns the actual number of bytes that
-     * were converted from the Base64 encoding.
-     *
-     *
-     * @param source the array to convert
-     * @param srcOffset the index where conversion begins
-     * @param destination the array to hold the conversion
-     * @param destOffset the index where output will be put
-     * @param decodabet the decodabet for decoding Base64 content
-     * @return the number of decoded bytes converted
-     * @since 1.3
-     */
-    private static int decode4to3(byte[] source, int srcOffset,
-            byte[] destination, int destOffset, byte[] decodabet) {
-        // Example: Dk==
-        if (source[srcOffset + 2] == EQUALS_SIGN) {
-            int outBuff =
-                    ((decodabet[source[srcOffset]] << 24) >>> 6)
-                    | ((decodabet[source[srcOffset + 1]] << 24) >>> 12);
-
-            destination[destOffset] = (byte) (outBuff >>> 16);
-            return 1;
-        } else if (source[srcOffset + 3] == EQUALS_SIGN) {
-            // Example: DkL=
-            int outBuff =
-                    ((decodabet[source[srcOffset]] << 24) >>> 6)
-                    | ((decodabet[source[srcOffset + 1]] << 24) >>> 12)
-                    | ((decodabet[source[srcOffset + 2]] << 24) >>> 18);
-
-            destination[destOffset] = (byte) (outBuff >>> 16);
-            destination[destOffset + 1] = (byte) (outBuff >>> 8);
-            return 2;
-        } else {
-            // Example: DkLE
-            int outBuff =
-                    ((decodabet[source[srcOffset]] << 24) >>> 6)
-                    | ((decodabet[source[srcOffset + 1]] << 24) >>> 12)
-                    | ((decodabet[source[srcOffset + 2]] << 24) >>> 18)
-                    | ((decodabet[source[srcOffset + 3]] << 24) >>> 24);
-
-            destination[destOffset] = (byte) (outBuff >> 16);
-            destination[destOffset + 1] = (byte) (outBuff >> 8);
-            destination[destOffset + 2] = (byte) (outBuff);
-            return 3;
-        }
-    } // end decodeToBytes
-
-
     /**
      * Decodes data from Base64 notation.
      *
@@ -501,16 +534,127 @@ public class Base64 {
      */
     public static byte[] decode(byte[] source, int off, int len, byte[] decodabet)
             throws Base64DecoderException {
-        int len34 = len * 3 / 4;
-        byte[] outBuff = new byte[2 + len34]; // Upper limit on size of output
-        int outBuffPosn = 0;
+        // Sized exactly up front, so there's no trailing copy.
+        byte[] out = new byte[decodedLength(source, off, len, decodabet)];
+        int outLen = decodeInto(source, off, len, decodabet, out, 0);
+        assert (outLen == out.length);
+        return out;
+    }
 
-        byte[] b4 = new byte[4];
-        int b4Posn = 0;
+    /**
+     * Returns the exact number of bytes Base64 content decodes to. The count
+     * is only exact for valid input; for invalid input it is still an upper
+     * bound on what {@link #decodeInto} writes before throwing.
+     *
+     * @param source the Base64 encoded data
+     * @param off the offset of where to begin decoding
+     * @param len the length of characters to decode
+     * @return the decoded length
+     */
+    public static int decodedLength(byte[] source, int off, int len) {
+        return decodedLength(source, off, len, DECODABET);
+    }
+
+    /**
+     * Same as {@link #decodedLength(byte[], int, int)}, for the supplied decodabet.
+     *
+     * @param source the Base64 encoded data
+     * @param off the offset of where to begin decoding
+     * @param len the length of characters to decode
+     * @param decodabet the decodabet for decoding Base64 content
+     * @return the decoded length
+     */
+    public static int decodedLength(byte[] source, int off, int len, byte[] decodabet) {
+        // Count the characters that carry data, up to the first '='.
+        int chars = 0;
+        for (int i = off, end = off + len; i < end; i++) {
+            byte sbiCrop = (byte) (source[i] & 0x7f);
+            if (sbiCrop == EQUALS_SIGN) break;
+            if (decodabet[sbiCrop] >= 0) chars++;
+        }
+        int rest = chars % 4;
+        return chars / 4 * 3 + (rest > 1 ? rest - 1 : 0);
+    }
+
+    /**
+     * Decodes Base64 content into a caller-supplied array, without allocating.
+     * <var>destination</var> must have room for {@link #decodedLength} bytes
+     * (<code>len * 3 / 4</code> always suffices) starting at <var>destOffset</var>.
+     *
+     * @param source the Base64 encoded data
+     * @param off the offset of where to begin decoding
+     * @param len the length of characters to decode
+     * @param destination the array to hold the decoded data
+     * @param destOffset the index where output will be put
+     * @return the number of decoded bytes written
+     */
+    public static int decodeInto(byte[] source, int off, int len, byte[] destination,
+            int destOffset) throws Base64DecoderException {
+        return decodeInto(source, off, len, DECODABET, destination, destOffset);
+    }
+
+    /**
+     * Decodes web safe Base64 content into a caller-supplied array, without allocating.
+     * Web safe encoding uses '-' instead of '+', '_' instead of '/'.
+     * See {@link #decodeInto(byte[], int, int, byte[], int)}.
+     *
+     * @param source the Base64 encoded data
+     * @param off the offset of where to begin decoding
+     * @param len the length of characters to decode
+     * @param destination the array to hold the decoded data
+     * @param destOffset the index where output will be put
+     * @return the number of decoded bytes written
+     */
+    public static int decodeWebSafeInto(byte[] source, int off, int len, byte[] destination,
+            int destOffset) throws Base64DecoderException {
+        return decodeInto(source, off, len, WEBSAFE_DECODABET, destination, destOffset);
+    }
+
+    /**
+     * Decodes Base64 content using the supplied decodabet into a caller-supplied
+     * array. See {@link #decodeInto(byte[], int, int, byte[], int)}.
+     *
+     * @param source the Base64 encoded data
+     * @param off the offset of where to begin decoding
+     * @param len the length of characters to decode
+     * @param decodabet the decodabet for decoding Base64 content
+     * @param destination the array to hold the decoded data
+     * @param destOffset the index where output will be put
+     * @return the number of decoded bytes written
+     */
+    public static int decodeInto(byte[] source, int off, int len, byte[] decodabet,
+            byte[] destination, int destOffset) throws Base64DecoderException {
+        int outBuffPosn = destOffset;
         int i = 0;
+
+        // Fast path: whole quanta of four alphabet characters. It stops at the
+        // first quantum holding anything else (white space, padding, bad input)
+        // and lets the general loop below take over from there.
+        int[][] fast = decodabet == DECODABET ? FAST_DECODE
+                : decodabet == WEBSAFE_DECODABET ? WEBSAFE_FAST_DECODE : null;
+        if (fast != null) {
+            int[] t0 = fast[0];
+            int[] t1 = fast[1];
+            int[] t2 = fast[2];
+            int[] t3 = fast[3];
+            for (int p = off, last = off + len - 4; p <= last; p += 4) {
+                int quantum = t0[source[p] & 0xff] | t1[source[p + 1] & 0xff]
+                        | t2[source[p + 2] & 0xff] | t3[source[p + 3] & 0xff];
+                if (quantum < 0) break;
+                destination[outBuffPosn] = (byte) (quantum >> 16);
+                destination[outBuffPosn + 1] = (byte) (quantum >> 8);
+                destination[outBuffPosn + 2] = (byte) (quantum);
+                outBuffPosn += 3;
+                i += 4;
+            }
+        }
+
+        // The pending quantum: b4Posn six-bit values packed into b4.
+        int b4 = 0;
+        int b4Posn = 0;
         byte sbiCrop = 0;
         byte sbiDecode = 0;
-        for (i = 0; i < len; i++) {
+        for (; i < len; i++) {
             sbiCrop = (byte) (source[i + off] & 0x7f); // Only the low seven bits
             sbiDecode = decodabet[sbiCrop];
 
@@ -536,9 +680,13 @@ public class Base64 {
                         break;
                     }
 
-                    b4[b4Posn++] = sbiCrop;
-                    if (b4Posn == 4) {
-                        outBuffPosn += decode4to3(b4, 0, outBuff, outBuffPosn, decodabet);
+                    b4 = (b4 << 6) | sbiDecode;
+                    if (++b4Posn == 4) {
+                        destination[outBuffPosn] = (byte) (b4 >> 16);
+                        destination[outBuffPosn + 1] = (byte) (b4 >> 8);
+                        destination[outBuffPosn + 2] = (byte) (b4);
+                        outBuffPosn += 3;
+                        b4 = 0;
                         b4Posn = 0;
                     }
                 }
@@ -549,22 +697,25 @@ public class Base64 {
         }
 
         // Because web safe encoding allows non padding base64 encodes, we
-        // need to pad the rest of the b4 buffer with equal signs when
-        // b4Posn != 0.  There can be at most 2 equal signs at the end of
-        // four characters, so the b4 buffer must have two or three
-        // characters.  This also catches the case where the input is
-        // padded with EQUALS_SIGN
+        // need to flush the rest of the quantum when b4Posn != 0.  There can
+        // be at most 2 equal signs at the end of four characters, so the
+        // quantum must hold two or three characters.  This also catches the
+        // case where the input is padded with EQUALS_SIGN
         if (b4Posn != 0) {
             if (b4Posn == 1) {
                 throw new Base64DecoderException("single trailing character at offset "
                         + (len - 1));
             }
-            b4[b4Posn++] = EQUALS_SIGN;
-            outBuffPosn += decode4to3(b4, 0, outBuff, outBuffPosn, decodabet);
+            if (b4Posn == 2) {
+                // Example: Dk==
+                destination[outBuffPosn++] = (byte) (b4 >>> 4);
+            } else {
+                // Example: DkL=
+                destination[outBuffPosn++] = (byte) (b4 >>> 10);
+                destination[outBuffPosn++] = (byte) (b4 >>> 2);
+            }
         }
 
-        byte[] out = new byte[outBuffPosn];
-        System.arraycopy(outBuff, 0, out, 0, outBuffPosn);
-        return out;
+        return outBuffPosn - destOffset;
     }
 }
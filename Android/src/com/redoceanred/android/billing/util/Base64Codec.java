@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Common shape of {@link Base64Encoder} and {@link Base64Decoder}, used by the
+ * Base64 streams to drive either one.
+ */
+interface Base64Codec {
+    /**
+     * Converts as much of <var>src</var> as fits into <var>dst</var>. Input that
+     * doesn't make up a whole quantum yet is kept for the next call.
+     */
+    void update(ByteBuffer src, ByteBuffer dst) throws Base64DecoderException;
+
+    /**
+     * Flushes the last, partial quantum into <var>dst</var>. Returns false (and
+     * writes nothing) if <var>dst</var> doesn't have room for it; call again with
+     * more room. After a successful call the codec can be reused.
+     */
+    boolean finish(ByteBuffer dst) throws Base64DecoderException;
+}
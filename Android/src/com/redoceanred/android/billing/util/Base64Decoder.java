@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental Base64 decoder working on {@link ByteBuffer}s. Characters that
+ * don't complete a quantum are kept between calls, so input can be fed in chunks
+ * of any size. The input it accepts is:
+ * <ul>
+ * <li>characters of the alphabet, with white space allowed anywhere and skipped;
+ * <li>optionally, '=' padding after the second or third character of the last
+ *     quantum, at most up to the end of that quantum (so "Dk", "Dk=" and "Dk=="
+ *     all decode the same);
+ * <li>after the padding, nothing but white space.
+ * </ul>
+ * A last quantum of a single character is an error. This is close to, but not the
+ * same as, what {@link Base64#decode(byte[])} accepts; the two differ on some
+ * malformed input after the padding.
+ */
+public class Base64Decoder implements Base64Codec {
+    private final byte[] mDecodabet;
+
+    // Six-bit values of the current quantum, and how many there are.
+    private int mB4;
+    private int mB4Posn;
+
+    // Padding seen so far, or 0 if the data hasn't ended yet.
+    private int mPadding;
+
+    // Offset of the next input byte, for error messages.
+    private long mOffset;
+
+    /** Creates a decoder for the standard alphabet. */
+    public Base64Decoder() {
+        this(false);
+    }
+
+    /**
+     * @param webSafe true to decode '-' and '_' instead of '+' and '/'
+     */
+    public Base64Decoder(boolean webSafe) {
+        mDecodabet = webSafe ? Base64.WEBSAFE_DECODABET : Base64.DECODABET;
+    }
+
+    public void update(ByteBuffer src, ByteBuffer dst) throws Base64DecoderException {
+        byte[] decodabet = mDecodabet;
+        while (src.hasRemaining()) {
+            int pos = src.position();
+            byte source = src.get(pos);
+            byte sbiCrop = (byte) (source & 0x7f); // Only the low seven bits
+            byte sbiDecode = decodabet[sbiCrop];
+
+            if (sbiDecode < Base64.WHITE_SPACE_ENC) {
+                throw new Base64DecoderException("Bad Base64 input character at " + mOffset
+                        + ": " + source + "(decimal)");
+            }
+            else if (sbiDecode < Base64.EQUALS_SIGN_ENC) {
+                // White space
+            }
+            else if (sbiCrop == Base64.EQUALS_SIGN) {
+                // An equals sign (for padding) must not occur at position 0 or 1
+                // and must be the last byte[s] in the encoded value
+                if (mPadding == 0 && (mB4Posn == 0 || mB4Posn == 1)) {
+                    throw new Base64DecoderException(
+                            "invalid padding byte '=' at byte offset " + mOffset);
+                }
+                if (mB4Posn + ++mPadding > 4) {
+                    throw new Base64DecoderException(
+                            "padding byte '=' falsely signals end of encoded value "
+                                    + "at offset " + mOffset);
+                }
+            }
+            else if (mPadding != 0) {
+                throw new Base64DecoderException("encoded value has invalid trailing byte");
+            }
+            else {
+                // A full quantum needs three bytes of room.
+                if (mB4Posn == 3 && dst.remaining() < 3) return;
+                mB4 = (mB4 << 6) | sbiDecode;
+                if (++mB4Posn == 4) {
+                    dst.put((byte) (mB4 >> 16));
+                    dst.put((byte) (mB4 >> 8));
+                    dst.put((byte) (mB4));
+                    mB4 = 0;
+                    mB4Posn = 0;
+                }
+            }
+            src.position(pos + 1);
+            mOffset++;
+        }
+    }
+
+    public boolean finish(ByteBuffer dst) throws Base64DecoderException {
+        if (mB4Posn == 1) {
+            throw new Base64DecoderException("single trailing character at offset "
+                    + (mOffset - 1));
+        }
+        if (mB4Posn != 0) {
+            if (dst.remaining() < mB4Posn - 1) return false;
+            if (mB4Posn == 2) {
+                // Example: Dk==
+                dst.put((byte) (mB4 >>> 4));
+            } else {
+                // Example: DkL=
+                dst.put((byte) (mB4 >>> 10));
+                dst.put((byte) (mB4 >>> 2));
+            }
+        }
+        reset();
+        return true;
+    }
+
+    /** Discards any pending input. */
+    public void reset() {
+        mB4 = 0;
+        mB4Posn = 0;
+        mPadding = 0;
+        mOffset = 0;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental Base64 encoder working on {@link ByteBuffer}s. Bytes that don't
+ * complete a 3-byte group are kept between calls, so data can be encoded in
+ * chunks of any size; the output is the same as {@link Base64#encode(byte[])}
+ * (or {@link Base64#encodeWebSafe}) on the whole input. No line breaks are inserted.
+ */
+public class Base64Encoder implements Base64Codec {
+    private final byte[] mAlphabet;
+    private final boolean mDoPadding;
+
+    // Up to two input bytes waiting for the rest of their group.
+    private int mPending;
+    private int mPendingCount;
+
+    /** Creates an encoder for the standard alphabet, with padding. */
+    public Base64Encoder() {
+        this(false, true);
+    }
+
+    /**
+     * @param webSafe true to use '-' and '_' instead of '+' and '/'
+     * @param doPadding true to pad the output with '=' chars
+     */
+    public Base64Encoder(boolean webSafe, boolean doPadding) {
+        mAlphabet = webSafe ? Base64.WEBSAFE_ALPHABET : Base64.ALPHABET;
+        mDoPadding = doPadding;
+    }
+
+    public void update(ByteBuffer src, ByteBuffer dst) {
+        byte[] alphabet = mAlphabet;
+        while (src.hasRemaining()) {
+            if (mPendingCount == 2 && dst.remaining() < 4) return;
+            mPending = (mPending << 8) | (src.get() & 0xff);
+            if (++mPendingCount == 3) {
+                int inBuff = mPending;
+                dst.put(alphabet[(inBuff >>> 18)]);
+                dst.put(alphabet[(inBuff >>> 12) & 0x3f]);
+                dst.put(alphabet[(inBuff >>> 6) & 0x3f]);
+                dst.put(alphabet[(inBuff) & 0x3f]);
+                mPending = 0;
+                mPendingCount = 0;
+            }
+        }
+    }
+
+    public boolean finish(ByteBuffer dst) {
+        if (mPendingCount == 0) return true;
+        int needed = mDoPadding ? 4 : mPendingCount + 1;
+        if (dst.remaining() < needed) return false;
+
+        byte[] alphabet = mAlphabet;
+        int inBuff = mPending << (mPendingCount == 1 ? 16 : 8);
+        dst.put(alphabet[(inBuff >>> 18)]);
+        dst.put(alphabet[(inBuff >>> 12) & 0x3f]);
+        if (mPendingCount == 2) dst.put(alphabet[(inBuff >>> 6) & 0x3f]);
+        if (mDoPadding) {
+            dst.put(Base64.EQUALS_SIGN);
+            if (mPendingCount == 1) dst.put(Base64.EQUALS_SIGN);
+        }
+        reset();
+        return true;
+    }
+
+    /** Discards any pending input. */
+    public void reset() {
+        mPending = 0;
+        mPendingCount = 0;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream that Base64-decodes (or encodes) the data read from another stream,
+ * using fixed-size buffers regardless of how much data goes through. Decoding errors
+ * are reported as IOExceptions caused by a {@link Base64DecoderException}.
+ */
+public class Base64InputStream extends FilterInputStream {
+    private static final int BUFFER_SIZE = 4096;
+
+    private final Base64Codec mCodec;
+    private final ByteBuffer mIn = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer mOut = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] mSingle = new byte[1];
+    private boolean mEof = false;
+    private boolean mFinished = false;
+
+    /**
+     * @param in the stream providing the data to convert
+     * @param encode {@link Base64#ENCODE} to encode what is read, {@link Base64#DECODE}
+     *     to decode it
+     */
+    public Base64InputStream(InputStream in, boolean encode) {
+        this(in, encode, false);
+    }
+
+    /**
+     * @param in the stream providing the data to convert
+     * @param encode {@link Base64#ENCODE} to encode what is read, {@link Base64#DECODE}
+     *     to decode it
+     * @param webSafe true to use the web safe alphabet (encoded output is then not padded)
+     */
+    public Base64InputStream(InputStream in, boolean encode, boolean webSafe) {
+        super(in);
+        mCodec = encode ? new Base64Encoder(webSafe, !webSafe) : new Base64Decoder(webSafe);
+        mIn.flip();
+        mOut.flip();
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(mSingle, 0, 1);
+        return n < 0 ? -1 : mSingle[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        while (!mOut.hasRemaining()) {
+            if (mFinished) return -1;
+            fill();
+        }
+        int n = Math.min(len, mOut.remaining());
+        mOut.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            int r = read(mSingle, 0, 1);
+            if (r < 0) break;
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mOut.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    // Produces more output into mOut (which is empty on entry).
+    private void fill() throws IOException {
+        mOut.clear();
+        try {
+            if (!mIn.hasRemaining() && !mEof) {
+                mIn.clear();
+                int n = in.read(mIn.array(), 0, mIn.capacity());
+                if (n < 0) {
+                    mEof = true;
+                    n = 0;
+                }
+                mIn.limit(n);
+            }
+            mCodec.update(mIn, mOut);
+            if (mEof && !mIn.hasRemaining()) {
+                mFinished = mCodec.finish(mOut);
+            }
+        }
+        catch (Base64DecoderException e) {
+            throw (IOException) new IOException("Invalid Base64 data.").initCause(e);
+        }
+        finally {
+            mOut.flip();
+        }
+    }
+}
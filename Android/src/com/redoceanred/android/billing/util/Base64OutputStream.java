@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An OutputStream that Base64-encodes (or decodes) everything written to it before
+ * passing it on, using a fixed-size buffer regardless of how much data goes through.
+ * The final partial quantum is written by {@link #close}. Decoding errors are
+ * reported as IOExceptions caused by a {@link Base64DecoderException}.
+ */
+public class Base64OutputStream extends FilterOutputStream {
+    private static final int BUFFER_SIZE = 4096;
+
+    private final Base64Codec mCodec;
+    private final ByteBuffer mOut = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] mSingle = new byte[1];
+    private boolean mClosed = false;
+
+    /**
+     * @param out the stream receiving the converted data
+     * @param encode {@link Base64#ENCODE} to encode what is written, {@link Base64#DECODE}
+     *     to decode it
+     */
+    public Base64OutputStream(OutputStream out, boolean encode) {
+        this(out, encode, false);
+    }
+
+    /**
+     * @param out the stream receiving the converted data
+     * @param encode {@link Base64#ENCODE} to encode what is written, {@link Base64#DECODE}
+     *     to decode it
+     * @param webSafe true to use the web safe alphabet (encoded output is then not padded)
+     */
+    public Base64OutputStream(OutputStream out, boolean encode, boolean webSafe) {
+        super(out);
+        mCodec = encode ? new Base64Encoder(webSafe, !webSafe) : new Base64Decoder(webSafe);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mSingle[0] = (byte) b;
+        write(mSingle, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mClosed) throw new IOException("Stream is closed.");
+        ByteBuffer src = ByteBuffer.wrap(b, off, len);
+        try {
+            while (src.hasRemaining()) {
+                mCodec.update(src, mOut);
+                if (src.hasRemaining() || !mOut.hasRemaining()) drain();
+            }
+        }
+        catch (Base64DecoderException e) {
+            throw (IOException) new IOException("Invalid Base64 data.").initCause(e);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        try {
+            while (!mCodec.finish(mOut)) drain();
+            drain();
+        }
+        catch (Base64DecoderException e) {
+            throw (IOException) new IOException("Invalid Base64 data.").initCause(e);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        if (mOut.position() == 0) return;
+        out.write(mOut.array(), 0, mOut.position());
+        mOut.clear();
+    }
+}
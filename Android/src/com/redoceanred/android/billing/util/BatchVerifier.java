@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import java.util.List;
+
+/**
+ * Verifies a page of purchases returned by getPurchases() in parallel. Results are
+ * reported per item and in input order, exactly as if {@link Security#verifyPurchase}
+ * had been called on each element in turn.
+ */
+final class BatchVerifier {
+    // Below this many receipts the thread hand-off costs more than it saves.
+    static final int MIN_PARALLEL_BATCH = 16;
+
+    // Smallest number of receipts handed to one thread at a time.
+    static final int MIN_CHUNK_SIZE = 8;
+
+    private static final int PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static WorkerPool sPool;
+
+    private BatchVerifier() {
+    }
+
+    /**
+     * Verifies signatureList.get(i) against purchaseDataList.get(i) for every i.
+     *
+     * @param base64PublicKey the base64-encoded public key to use for verifying.
+     * @param purchaseDataList the signed JSON strings
+     * @param signatureList the signatures, one per element of purchaseDataList
+     * @return the verification result of each element, in input order
+     */
+    static boolean[] verify(final String base64PublicKey, final List<String> purchaseDataList,
+                            final List<String> signatureList) {
+        final int size = purchaseDataList.size();
+        final boolean[] verified = new boolean[size];
+
+        // Answer what we can from the verification cache; only the rest needs RSA work.
+        // Keys of the misses are kept so that they aren't hashed again when verified.
+        final int[] pending = new int[size];
+        final VerificationCache.Key[] keys = new VerificationCache.Key[size];
+        int pendingCount = 0;
+        for (int i = 0; i < size; i++) {
+            String signedData = purchaseDataList.get(i);
+            String signature = signatureList.get(i);
+            VerificationCache.Key probe = Security.cacheKey(base64PublicKey, signedData, signature);
+            if (probe == null) {
+                // Resolved without a signature check.
+                verified[i] = Security.verifyPurchase(base64PublicKey, signedData, signature);
+                continue;
+            }
+            Boolean cached = VerificationCache.get(probe);
+            if (cached != null) {
+                verified[i] = cached.booleanValue();
+            }
+            else {
+                keys[pendingCount] = VerificationCache.copy(probe);
+                pending[pendingCount++] = i;
+            }
+        }
+
+        if (pendingCount < MIN_PARALLEL_BATCH || PARALLELISM == 1) {
+            for (int p = 0; p < pendingCount; p++) {
+                int i = pending[p];
+                verified[i] = Security.verifyUncached(base64PublicKey, purchaseDataList.get(i),
+                        signatureList.get(i), keys[p]);
+            }
+            return verified;
+        }
+
+        // A few chunks per thread so that uneven receipts still balance out.
+        final int total = pendingCount;
+        final int chunkSize = Math.max(MIN_CHUNK_SIZE, total / (PARALLELISM * 4));
+        int chunks = (total + chunkSize - 1) / chunkSize;
+        ParallelTasks.run(getPool(), PARALLELISM, chunks, new ParallelTasks.Task() {
+            public void run(int chunk) {
+                int end = Math.min(total, (chunk + 1) * chunkSize);
+                for (int p = chunk * chunkSize; p < end; p++) {
+                    int i = pending[p];
+                    verified[i] = Security.verifyUncached(base64PublicKey, purchaseDataList.get(i),
+                            signatureList.get(i), keys[p]);
+                }
+            }
+        });
+        return verified;
+    }
+
+    private static synchronized WorkerPool getPool() {
+        if (sPool == null) {
+            // The caller works too, so one thread fewer than there are cores.
+            sPool = new WorkerPool("IabHelper-verify", Math.max(1, PARALLELISM - 1), Integer.MAX_VALUE);
+        }
+        return sPool;
+    }
+}
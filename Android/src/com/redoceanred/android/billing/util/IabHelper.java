@@ -23,9 +23,11 @@ import android.content.Intent;
 import android.content.IntentSender.SendIntentException;
 import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.DeadObjectException;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -34,7 +36,15 @@ import com.android.vending.billing.IInAppBillingService;
 import org.json.JSONException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
@@ -62,9 +72,10 @@ import java.util.List;
  * A note about threading: When using this object from a background thread, you may
  * call the blocking versions of methods; when using from a UI thread, call
  * only the asynchronous versions and handle the results via callbacks.
- * Also, notice that you can only call one asynchronous operation at a time;
- * attempting to start a second asynchronous operation while the first one
- * has not yet completed will result in an exception being thrown.
+ * Asynchronous operations that don't interfere with each other (inventory queries,
+ * consumptions of different purchases) run concurrently; one that would interfere
+ * with an operation already in progress is queued and started once it can run.
+ * Each asynchronous method returns an {@link IabOperation} to follow or cancel it.
  *
  * @author Bruno Oliveira (Google)
  *
@@ -80,21 +91,38 @@ public class IabHelper {
     // Are subscriptions supported?
     boolean mSubscriptionsSupported = false; 
     
-    // Is an asynchronous operation in progress?
-    // (only one at a time can be in progress)
-    boolean mAsyncInProgress = false;
+    // Resources locked by asynchronous operations
+    static final String RESOURCE_INVENTORY = "inventory";
+    static final String RESOURCE_TOKEN_PREFIX = "token:";
 
-    // (for logging/debugging)
-    // if mAsyncInProgress == true, what asynchronous operation is in progress?
-    String mAsyncOperation = "";
+    // Decides which asynchronous operations may run at the same time
+    final OperationScheduler mScheduler = new OperationScheduler();
+
+    // The purchase flow in progress, finished by handleActivityResult()
+    IabOperation mPurchaseOperation;
 
     // Context we were passed during initialization
     Context mContext;
 
-    // Connection to the service
-    IInAppBillingService mService;
+    // Connection to the service (null while disconnected)
+    volatile IInAppBillingService mService;
     ServiceConnection mServiceConn;
 
+    // Intent we bind with, kept to rebind after the service went away
+    Intent mServiceIntent;
+
+    // Notified when the service comes back after a disconnect
+    final Object mConnectionLock = new Object();
+
+    // Delays between attempts to rebind after a disconnect
+    final ReconnectBackoff mReconnectBackoff = new ReconnectBackoff(DEFAULT_RECONNECT_INITIAL_DELAY,
+            DEFAULT_RECONNECT_MAX_DELAY);
+    Handler mReconnectHandler;
+    Runnable mReconnectRunnable;
+
+    // How long a request that lost the service waits for it to come back, in milliseconds
+    long mReplayTimeout = DEFAULT_REPLAY_TIMEOUT;
+
     // The request code used to launch purchase flow
     int mRequestCode;
     
@@ -104,6 +132,44 @@ public class IabHelper {
     // Public key for verifying signature, in base64 encoding
     String mSignatureBase64 = null;
 
+    // Where full inventory refreshes are saved for the next launch (null if not wanted)
+    InventorySnapshot mInventorySnapshot = null;
+
+    // Where SKU details are kept for the next launch, per locale (null if not wanted)
+    SkuDetailsStore mSkuDetailsStore = null;
+
+    // How long SKU details stay fresh for incremental inventory refreshes, in milliseconds
+    long mSkuDetailsMaxAge = DEFAULT_SKU_DETAILS_MAX_AGE;
+
+    // SKU details kept across queries (null if not wanted)
+    volatile SkuDetailsCache mSkuDetailsCache = new SkuDetailsCache(SkuDetailsCache.DEFAULT_MAX_ENTRIES,
+            SkuDetailsCache.DEFAULT_MAX_BYTES, DEFAULT_SKU_DETAILS_MAX_AGE);
+
+    // Set while expired cache entries are being refreshed
+    final AtomicBoolean mSkuDetailsRefreshing = new AtomicBoolean();
+
+    // Delays before retrying cache entries a refresh couldn't renew; grows while refreshes fail
+    final ReconnectBackoff mSkuDetailsRetryBackoff = new ReconnectBackoff(DEFAULT_SKU_DETAILS_RETRY_DELAY,
+            DEFAULT_SKU_DETAILS_MAX_AGE);
+
+    // SKUs per getSkuDetails() request, tuned from the observed latency
+    final AdaptiveChunkSize mSkuDetailsChunkSize = new AdaptiveChunkSize(1,
+            DEFAULT_SKU_DETAILS_CHUNK_SIZE, DEFAULT_SKU_DETAILS_TARGET_LATENCY);
+
+    // How many getSkuDetails() requests may be in flight at once
+    int mSkuDetailsParallelism = DEFAULT_SKU_DETAILS_PARALLELISM;
+
+    // How many consumePurchase() requests of one multi-item consumption may be in flight at once
+    int mConsumeParallelism = DEFAULT_CONSUME_PARALLELISM;
+
+    // Threads for service requests made in parallel (shared by all helpers)
+    private static WorkerPool sRequestPool;
+
+    // Runs the work of asynchronous operations: set by the app, or mWorkerPool
+    Executor mExecutor = null;
+    // Our own pool, created on first use unless the app supplied an executor
+    WorkerPool mWorkerPool = null;
+
     // Billing response codes
     public static final int BILLING_RESPONSE_RESULT_OK = 0;
     public static final int BILLING_RESPONSE_RESULT_USER_CANCELED = 1;
@@ -146,6 +212,32 @@ public class IabHelper {
     public static final String GET_SKU_DETAILS_ITEM_LIST = "ITEM_ID_LIST";
     public static final String GET_SKU_DETAILS_ITEM_TYPE_LIST = "ITEM_TYPE_LIST";
 
+    // Default for setSkuDetailsMaxAge(): one hour
+    public static final long DEFAULT_SKU_DETAILS_MAX_AGE = 60 * 60 * 1000L;
+
+    // Defaults for the getSkuDetails() chunking: the service takes at most 20 SKUs per request
+    public static final int DEFAULT_SKU_DETAILS_CHUNK_SIZE = 20;
+    public static final int DEFAULT_SKU_DETAILS_PARALLELISM = 4;
+    public static final long DEFAULT_SKU_DETAILS_TARGET_LATENCY = 1000;
+
+    // First delay before SKU details that couldn't be refreshed are tried again
+    public static final long DEFAULT_SKU_DETAILS_RETRY_DELAY = 30 * 1000L;
+
+    // Default for setConsumeParallelism()
+    public static final int DEFAULT_CONSUME_PARALLELISM = 4;
+
+    // Size of the default worker pool for asynchronous operations
+    public static final int DEFAULT_WORKER_THREADS = 2;
+    public static final int DEFAULT_WORKER_QUEUE_CAPACITY = 32;
+
+    // Defaults for rebinding after the service disconnects
+    public static final long DEFAULT_RECONNECT_INITIAL_DELAY = 500;
+    public static final long DEFAULT_RECONNECT_MAX_DELAY = 60 * 1000L;
+    public static final long DEFAULT_REPLAY_TIMEOUT = 30 * 1000L;
+
+    // How many times one request is replayed after losing the service
+    static final int MAX_REPLAYS = 3;
+
     /**
      * Creates an instance. After creation, it will not yet be ready to use. You must perform
      * setup by calling {@link #startSetup} and wait for setup to complete. This constructor does not
@@ -163,6 +255,14 @@ public class IabHelper {
         logDebug("IAB helper created.");
     }
     
+    /**
+     * Sets the public key used to verify purchase signatures, for a helper created (and
+     * possibly set up) before the key was known. Must be called before any query or purchase.
+     */
+    public void setPublicKey(String base64PublicKey) {
+        mSignatureBase64 = base64PublicKey;
+    }
+
     /**
      * Enables or disable debug logging through LogCat.
      */
@@ -175,6 +275,168 @@ public class IabHelper {
         mDebugLog = enable;
     }
 
+    /**
+     * Sets a snapshot to save the inventory to after each successful {@link #queryInventory}
+     * that includes SKU details. Read it back with {@link InventorySnapshot#get} on the
+     * next launch to have entitlements and prices before setup completes.
+     */
+    public void setInventorySnapshot(InventorySnapshot snapshot) {
+        mInventorySnapshot = snapshot;
+    }
+
+    /**
+     * Sets a store to keep SKU details in for the next launch. Each {@link #queryInventory}
+     * that includes SKU details replaces its contents, and the returned inventories fall
+     * back on it for SKUs they have no details for. The {@link #setInventorySnapshot
+     * inventory snapshot} then only keeps purchases.
+     */
+    public void setSkuDetailsStore(SkuDetailsStore store) {
+        mSkuDetailsStore = store;
+    }
+
+    /**
+     * Sets how long SKU details fetched by an earlier query are reused by an incremental
+     * {@link #queryInventory(Inventory, boolean, List, List)} instead of being requested again.
+     *
+     * @param maxAgeMillis maximum age in milliseconds; 0 always requests fresh details
+     */
+    public void setSkuDetailsMaxAge(long maxAgeMillis) {
+        mSkuDetailsMaxAge = maxAgeMillis;
+    }
+
+    /**
+     * Sets how SKU detail queries are split into getSkuDetails() requests. Large lists of
+     * SKUs are sent in chunks, several at once.
+     *
+     * @param maxChunkSize the largest number of SKUs per request
+     * @param adaptive if true, the chunk size is lowered while requests are slow or fail
+     *     and raised back towards maxChunkSize while they are fast; if false, it is fixed
+     * @param parallelism how many requests may be in flight at once
+     */
+    public void setSkuDetailsChunking(int maxChunkSize, boolean adaptive, int parallelism) {
+        mSkuDetailsChunkSize.set(maxChunkSize, adaptive);
+        mSkuDetailsParallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Sets the getSkuDetails() latency above which the adaptive chunk size shrinks.
+     */
+    public void setSkuDetailsTargetLatency(long millis) {
+        mSkuDetailsChunkSize.setTargetLatency(millis);
+    }
+
+    /**
+     * Sets how many purchases of a multi-item {@link #consumeAsync} are consumed at once.
+     * Results are still reported in the order of the purchases.
+     */
+    public void setConsumeParallelism(int parallelism) {
+        mConsumeParallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Sets the cache that keeps SKU details between inventory queries. Details still fresh
+     * in the cache aren't requested again by {@link #queryInventory}; expired ones are served
+     * by {@link #getSkuDetails} while they are refreshed. null disables the cache.
+     */
+    public void setSkuDetailsCache(SkuDetailsCache cache) {
+        mSkuDetailsCache = cache;
+    }
+
+    public SkuDetailsCache getSkuDetailsCache() {
+        return mSkuDetailsCache;
+    }
+
+    /**
+     * Returns the cached details of sku right away, even if they have expired. Expired
+     * details are then refreshed in the background, in batches with the other expired ones.
+     *
+     * @return the details, or null if sku isn't in the cache
+     */
+    public SkuDetails getSkuDetails(String sku) {
+        SkuDetailsCache cache = mSkuDetailsCache;
+        if (cache == null) return null;
+        SkuDetails details = cache.get(sku);
+        if (details != null && cache.isExpired(sku, System.currentTimeMillis())) refreshSkuDetailsAsync();
+        return details;
+    }
+
+    /**
+     * Sets the delays between attempts to rebind when the billing service disconnects
+     * (e.g. because the Play Store was updated). Each attempt waits about twice as long
+     * as the previous one, with some randomness, up to maxDelayMillis.
+     */
+    public void setReconnectBackoff(long initialDelayMillis, long maxDelayMillis) {
+        mReconnectBackoff.set(initialDelayMillis, maxDelayMillis);
+    }
+
+    /**
+     * Sets how long an asynchronous request that lost the service connection waits for it
+     * to come back before it is made again. If the service isn't back in time, the request
+     * fails as before. 0 disables replaying.
+     *
+     * Requests aren't held back while the service is away: one that runs meanwhile fails,
+     * then waits for the reconnection on its worker thread and is retried. A consumption
+     * that was applied just before the service died is reported as successful when the
+     * retry finds the item no longer owned.
+     */
+    public void setReplayTimeout(long millis) {
+        mReplayTimeout = millis;
+    }
+
+    /** Returns whether the billing service is currently connected. */
+    public boolean isConnected() {
+        return mService != null;
+    }
+
+    /**
+     * Sets the executor that runs the work of asynchronous operations such as
+     * {@link #queryInventoryAsync} and {@link #consumeAsync}. By default they run on a
+     * small pool of worker threads owned by this helper, which {@link #dispose} shuts
+     * down; an executor set here is not shut down by the helper.
+     *
+     * @param executor the executor to use, or null for the default pool
+     */
+    public synchronized void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /** Returns the executor that runs asynchronous operations, creating the default pool if needed. */
+    public synchronized Executor getExecutor() {
+        if (mExecutor != null) return mExecutor;
+        if (mWorkerPool == null) {
+            mWorkerPool = new WorkerPool("IabHelper-worker", DEFAULT_WORKER_THREADS,
+                    DEFAULT_WORKER_QUEUE_CAPACITY);
+        }
+        return mWorkerPool;
+    }
+
+    /**
+     * Returns the number of asynchronous tasks waiting for a thread, or -1 if the executor
+     * in use can't tell.
+     */
+    public synchronized int getQueuedTaskCount() {
+        Executor executor = mExecutor != null ? mExecutor : mWorkerPool;
+        if (executor == null) return 0;
+        if (executor instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor) executor).getQueue().size();
+        return -1;
+    }
+
+    /**
+     * Returns the number of asynchronous tasks running right now, or -1 if the executor in
+     * use can't tell.
+     */
+    public synchronized int getActiveTaskCount() {
+        Executor executor = mExecutor != null ? mExecutor : mWorkerPool;
+        if (executor == null) return 0;
+        if (executor instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor) executor).getActiveCount();
+        return -1;
+    }
+
+    /** Returns the current number of SKUs per getSkuDetails() request. */
+    public int getSkuDetailsChunkSize() {
+        return mSkuDetailsChunkSize.get();
+    }
+
     /**
      * Callback for setup process. This listener's {@link #onIabSetupFinished} method is called
      * when the setup process is complete.
@@ -206,11 +468,23 @@ public class IabHelper {
             public void onServiceDisconnected(ComponentName name) {
                 logDebug("Billing service disconnected.");
                 mService = null;
+                // Set up before: rebind, and let requests wait for the service meanwhile.
+                if (mSetupDone) scheduleReconnect();
             }
 
             @Override
             public void onServiceConnected(ComponentName name, IBinder service) {
                 logDebug("Billing service connected.");
+                if (mSetupDone) {
+                    logDebug("Billing service reconnected after " + mReconnectBackoff.getAttempts() + " attempt(s).");
+                    cancelReconnect();
+                    mReconnectBackoff.reset();
+                    synchronized (mConnectionLock) {
+                        mService = IInAppBillingService.Stub.asInterface(service);
+                        mConnectionLock.notifyAll();
+                    }
+                    return;
+                }
                 mService = IInAppBillingService.Stub.asInterface(service);
                 String packageName = mContext.getPackageName();
                 try {
@@ -258,6 +532,7 @@ public class IabHelper {
         Intent serviceIntent = new Intent("com.android.vending.billing.InAppBillingService.BIND");
         if (!mContext.getPackageManager().queryIntentServices(serviceIntent, 0).isEmpty()) {
             // service available to handle that Intent
+            mServiceIntent = serviceIntent;
             mContext.bindService(serviceIntent, mServiceConn, Context.BIND_AUTO_CREATE);
         }
         else {
@@ -274,18 +549,33 @@ public class IabHelper {
      * Dispose of object, releasing resources. It's very important to call this
      * method when you are done with this object. It will release any resources
      * used by it such as service connections. Naturally, once the object is
-     * disposed of, it can't be used again.
+     * disposed of, it can't be used again. Operations still queued don't run; their
+     * listeners get an {@link #IABHELPER_UNKNOWN_ERROR} result.
      */
     public void dispose() {
         logDebug("Disposing.");
         mSetupDone = false;
+        cancelReconnect();
         if (mServiceConn != null) {
             logDebug("Unbinding from service.");
             if (mContext != null) mContext.unbindService(mServiceConn);
             mServiceConn = null;
-            mService = null;
             mPurchaseListener = null;
         }
+        synchronized (mConnectionLock) {
+            // Requests waiting for a reconnection give up.
+            mService = null;
+            mConnectionLock.notifyAll();
+        }
+        // Queued operations won't start; their listeners hear so.
+        mScheduler.cancelWaiting(new IabResult(IABHELPER_UNKNOWN_ERROR, "IAB helper was disposed."));
+        synchronized (this) {
+            // Operations already started run to completion; nothing new is accepted.
+            if (mWorkerPool != null) {
+                mWorkerPool.shutdown();
+                mWorkerPool = null;
+            }
+        }
     }
     
     /** Returns whether subscriptions are supported. */
@@ -314,23 +604,23 @@ public class IabHelper {
     // the purchase finishes
     OnIabPurchaseFinishedListener mPurchaseListener;
 
-    public void launchPurchaseFlow(Activity act, String sku, int requestCode, OnIabPurchaseFinishedListener listener) {
-        launchPurchaseFlow(act, sku, requestCode, listener, "");
+    public IabOperation launchPurchaseFlow(Activity act, String sku, int requestCode, OnIabPurchaseFinishedListener listener) {
+        return launchPurchaseFlow(act, sku, requestCode, listener, "");
     }
     
-    public void launchPurchaseFlow(Activity act, String sku, int requestCode, 
+    public IabOperation launchPurchaseFlow(Activity act, String sku, int requestCode, 
             OnIabPurchaseFinishedListener listener, String extraData) {
-        launchPurchaseFlow(act, sku, ITEM_TYPE_INAPP, requestCode, listener, extraData); 
+        return launchPurchaseFlow(act, sku, ITEM_TYPE_INAPP, requestCode, listener, extraData); 
     }
     
-    public void launchSubscriptionPurchaseFlow(Activity act, String sku, int requestCode, 
+    public IabOperation launchSubscriptionPurchaseFlow(Activity act, String sku, int requestCode, 
             OnIabPurchaseFinishedListener listener) {
-        launchSubscriptionPurchaseFlow(act, sku, requestCode, listener, "");
+        return launchSubscriptionPurchaseFlow(act, sku, requestCode, listener, "");
     }
     
-    public void launchSubscriptionPurchaseFlow(Activity act, String sku, int requestCode, 
+    public IabOperation launchSubscriptionPurchaseFlow(Activity act, String sku, int requestCode, 
             OnIabPurchaseFinishedListener listener, String extraData) {
-        launchPurchaseFlow(act, sku, ITEM_TYPE_SUBS, requestCode, listener, extraData); 
+        return launchPurchaseFlow(act, sku, ITEM_TYPE_SUBS, requestCode, listener, extraData); 
     }
 
     /**
@@ -350,31 +640,66 @@ public class IabHelper {
      * @param extraData Extra data (developer payload), which will be returned with the purchase data
      *     when the purchase completes. This extra data will be permanently bound to that purchase
      *     and will always be returned when the purchase is queried.
+     * @return the operation; if another operation holds the inventory, the purchase flow
+     *     is launched on this thread once that operation finishes.
      */
-    public void launchPurchaseFlow(Activity act, String sku, String itemType, int requestCode,
-                        OnIabPurchaseFinishedListener listener, String extraData) {
+    public IabOperation launchPurchaseFlow(final Activity act, final String sku, final String itemType,
+                        final int requestCode, final OnIabPurchaseFinishedListener listener,
+                        final String extraData) {
         checkSetupDone("launchPurchaseFlow");
-        flagStartAsync("launchPurchaseFlow");
+        final IabOperation op = mScheduler.newOperation("launchPurchaseFlow",
+                new String[] { RESOURCE_INVENTORY }, new int[] { IabOperation.EXCLUSIVE });
+        final Handler handler = new Handler();
+        final Runnable launch = new Runnable() {
+            public void run() {
+                launchPurchaseFlowInternal(op, act, sku, itemType, requestCode, listener, extraData);
+            }
+        };
+        // A deferred launch is started from whichever thread finished the last conflicting
+        // operation, so bring it back to the caller's thread.
+        op.mDeferredStart = new Runnable() {
+            public void run() {
+                handler.post(launch);
+            }
+        };
+        op.mOnStartFailed = new IabOperation.OnStartFailedListener() {
+            public void onStartFailed(final IabResult result) {
+                if (listener == null) return;
+                handler.post(new Runnable() {
+                    public void run() {
+                        listener.onIabPurchaseFinished(result, null);
+                    }
+                });
+            }
+        };
+        if (mScheduler.tryStart(op)) launch.run();
+        else logDebug("Queueing async operation: " + op.getName());
+        return op;
+    }
+
+    void launchPurchaseFlowInternal(IabOperation op, Activity act, String sku, String itemType,
+                        int requestCode, OnIabPurchaseFinishedListener listener, String extraData) {
+        logDebug("Starting async operation: " + op.getName());
         IabResult result;
         
         if (itemType.equals(ITEM_TYPE_SUBS) && !mSubscriptionsSupported) {
             IabResult r = new IabResult(IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE, 
                     "Subscriptions are not available.");
             if (listener != null) listener.onIabPurchaseFinished(r, null);
-            flagEndAsync();
+            mScheduler.finish(op);
             return;
         }
 
         try {
             logDebug("Constructing buy intent for " + sku + ", item type: " + itemType);
-            Bundle buyIntentBundle = mService.getBuyIntent(3, mContext.getPackageName(), sku, itemType, extraData);
+            Bundle buyIntentBundle = service().getBuyIntent(3, mContext.getPackageName(), sku, itemType, extraData);
             int response = getResponseCodeFromBundle(buyIntentBundle);
             if (response != BILLING_RESPONSE_RESULT_OK) {
                 logError("Unable to buy item, Error response: " + getResponseDesc(response));
 
                 result = new IabResult(response, "Unable to buy item");
                 if (listener != null) listener.onIabPurchaseFinished(result, null);
-                flagEndAsync();
+                mScheduler.finish(op);
                 return;
             }
 
@@ -383,6 +708,7 @@ public class IabHelper {
             mRequestCode = requestCode;
             mPurchaseListener = listener;
             mPurchasingItemType = itemType;
+            mPurchaseOperation = op;
             act.startIntentSenderForResult(pendingIntent.getIntentSender(),
                                            requestCode, new Intent(),
                                            Integer.valueOf(0), Integer.valueOf(0),
@@ -394,7 +720,7 @@ public class IabHelper {
 
             result = new IabResult(IABHELPER_SEND_INTENT_FAILED, "Failed to send intent.");
             if (listener != null) listener.onIabPurchaseFinished(result, null);
-            flagEndAsync();
+            mScheduler.finish(op);
         }
         catch (RemoteException e) {
             logError("RemoteException while launching purchase flow for sku " + sku);
@@ -402,7 +728,7 @@ public class IabHelper {
 
             result = new IabResult(IABHELPER_REMOTE_EXCEPTION, "Remote exception while starting purchase flow");
             if (listener != null) listener.onIabPurchaseFinished(result, null);
-            flagEndAsync();
+            mScheduler.finish(op);
         }
     }
 
@@ -426,7 +752,9 @@ public class IabHelper {
         checkSetupDone("handleActivityResult");
 
         // end of async purchase operation
-        flagEndAsync();
+        IabOperation op = mPurchaseOperation;
+        mPurchaseOperation = null;
+        if (op != null) mScheduler.finish(op);
 
         if (data == null) {
             logError("Null data in IAB activity result.");
@@ -521,43 +849,89 @@ public class IabHelper {
      */
     public Inventory queryInventory(boolean querySkuDetails, List<String> moreItemSkus, 
                                         List<String> moreSubsSkus) throws IabException {
+        return queryInventory(null, querySkuDetails, moreItemSkus, moreSubsSkus);
+    }
+
+    /**
+     * Incrementally refreshes an inventory. This works like {@link #queryInventory(boolean, List, List)},
+     * except that purchases whose data and signature are unchanged since <var>previous</var>
+     * are reused as they are instead of being parsed and verified again, and SKU details
+     * in <var>previous</var> younger than {@link #setSkuDetailsMaxAge the maximum age} are
+     * not requested again. Purchases that are gone are dropped. <var>previous</var> itself
+     * is not modified; a new Inventory is returned.
+     *
+     * @param previous the last inventory returned by this helper, or null for a full refresh
+     * @throws IabException if a problem occurs while refreshing the inventory.
+     */
+    public Inventory queryInventory(final Inventory previous, final boolean querySkuDetails,
+                                        final List<String> moreItemSkus,
+                                        final List<String> moreSubsSkus) throws IabException {
         checkSetupDone("queryInventory");
+        final Inventory inv = new Inventory();
+
+        // In-app items and subscriptions are independent: query both at once.
+        final boolean subs = mSubscriptionsSupported;
+        final IabException[] failures = new IabException[2];
+        ParallelTasks.run(getRequestPool(2), 2, subs ? 2 : 1, new ParallelTasks.Task() {
+            public void run(int stage) {
+                if (stage == 0) {
+                    failures[0] = queryItems(inv, ITEM_TYPE_INAPP, querySkuDetails, moreItemSkus, previous);
+                }
+                else {
+                    failures[1] = queryItems(inv, ITEM_TYPE_SUBS, querySkuDetails, moreSubsSkus, previous);
+                }
+            }
+        });
+        // In-app problems first, as when the two were queried one after the other.
+        if (failures[0] != null) throw failures[0];
+        if (failures[1] != null) throw failures[1];
+
+        // Let unchanged entries share the previous inventory's structure, so keeping both is cheap.
+        if (previous != null) inv.shareStructureWith(previous);
+
+        // Only complete refreshes are worth keeping; one without prices would lose them.
+        // With a store, the details go there instead, keyed by locale.
+        SkuDetailsStore store = mSkuDetailsStore;
+        if (querySkuDetails && mInventorySnapshot != null) mInventorySnapshot.save(inv, store == null);
+
+        if (store != null) {
+            List<SkuDetails> details = inv.getAllSkuDetails();
+            if (querySkuDetails && !details.isEmpty()) store.save(details);
+            inv.setSkuDetailsStore(store);
+        }
+
+        return inv;
+    }
+
+    /**
+     * Queries owned items of one type and, if asked, their details into inv.
+     *
+     * @return null on success, otherwise what went wrong
+     */
+    IabException queryItems(Inventory inv, String itemType, boolean querySkuDetails,
+                            List<String> moreSkus, Inventory previous) {
+        boolean isSubs = ITEM_TYPE_SUBS.equals(itemType);
         try {
-            Inventory inv = new Inventory();
-            int r = queryPurchases(inv, ITEM_TYPE_INAPP);
+            int r = queryPurchases(inv, itemType, previous);
             if (r != BILLING_RESPONSE_RESULT_OK) {
-                throw new IabException(r, "Error refreshing inventory (querying owned items).");
+                return new IabException(r, isSubs ? "Error refreshing inventory (querying owned subscriptions)."
+                        : "Error refreshing inventory (querying owned items).");
             }
 
             if (querySkuDetails) {
-                r = querySkuDetails(ITEM_TYPE_INAPP, inv, moreItemSkus);
+                r = querySkuDetails(itemType, inv, moreSkus, previous);
                 if (r != BILLING_RESPONSE_RESULT_OK) {
-                    throw new IabException(r, "Error refreshing inventory (querying prices of items).");
+                    return new IabException(r, isSubs ? "Error refreshing inventory (querying prices of subscriptions)."
+                            : "Error refreshing inventory (querying prices of items).");
                 }
             }
-            
-            // if subscriptions are supported, then also query for subscriptions
-            if (mSubscriptionsSupported) {
-                r = queryPurchases(inv, ITEM_TYPE_SUBS);
-                if (r != BILLING_RESPONSE_RESULT_OK) {
-                    throw new IabException(r, "Error refreshing inventory (querying owned subscriptions).");
-                }
-                
-                if (querySkuDetails) {
-                    r = querySkuDetails(ITEM_TYPE_SUBS, inv, moreItemSkus);
-                    if (r != BILLING_RESPONSE_RESULT_OK) {
-                        throw new IabException(r, "Error refreshing inventory (querying prices of subscriptions).");
-                    }
-                }                
-            }
-            
-            return inv;
+            return null;
         }
         catch (RemoteException e) {
-            throw new IabException(IABHELPER_REMOTE_EXCEPTION, "Remote exception while refreshing inventory.", e);
+            return new IabException(IABHELPER_REMOTE_EXCEPTION, "Remote exception while refreshing inventory.", e);
         }
         catch (JSONException e) {
-            throw new IabException(IABHELPER_BAD_RESPONSE, "Error parsing JSON response while refreshing inventory.", e);
+            return new IabException(IABHELPER_BAD_RESPONSE, "Error parsing JSON response while refreshing inventory.", e);
         }
     }
 
@@ -584,26 +958,59 @@ public class IabHelper {
      * @param querySkuDetails as in {@link #queryInventory}
      * @param moreSkus as in {@link #queryInventory}
      * @param listener The listener to notify when the refresh operation completes.
+     * @return the operation, which waits while a consumption or purchase is in progress.
+     */
+    public IabOperation queryInventoryAsync(final boolean querySkuDetails,
+                               final List<String> moreSkus,
+                               final List<String> moreSubsSkus,
+                               final QueryInventoryFinishedListener listener) {
+        return queryInventoryAsync(null, querySkuDetails, moreSkus, moreSubsSkus, listener);
+    }
+
+    /**
+     * Asynchronous wrapper for the incremental inventory query
+     * {@link #queryInventory(Inventory, boolean, List, List)}.
+     *
+     * @param previous as in {@link #queryInventory(Inventory, boolean, List, List)}
+     * @param listener The listener to notify when the refresh operation completes.
+     * @return the operation, which waits while a consumption or purchase is in progress.
      */
-    public void queryInventoryAsync(final boolean querySkuDetails,
+    public IabOperation queryInventoryAsync(final Inventory previous,
+                               final boolean querySkuDetails,
                                final List<String> moreSkus,
                                final List<String> moreSubsSkus,
                                final QueryInventoryFinishedListener listener) {
         final Handler handler = new Handler();
         checkSetupDone("queryInventory");
-        flagStartAsync("refresh inventory");
-        (new Thread(new Runnable() {
+        final IabOperation op = mScheduler.newOperation("refresh inventory",
+                new String[] { RESOURCE_INVENTORY }, new int[] { IabOperation.READ });
+        op.mOnStartFailed = new IabOperation.OnStartFailedListener() {
+            public void onStartFailed(final IabResult result) {
+                handler.post(new Runnable() {
+                    public void run() {
+                        listener.onQueryInventoryFinished(result, null);
+                    }
+                });
+            }
+        };
+        return startAsync(op, new Runnable() {
             public void run() {
                 IabResult result = new IabResult(BILLING_RESPONSE_RESULT_OK, "Inventory refresh successful.");
                 Inventory inv = null;
-                try {
-                    inv = queryInventory(querySkuDetails, moreSkus, moreSubsSkus);
-                }
-                catch (IabException ex) {
-                    result = ex.getResult();
+                for (int attempt = 0; ; attempt++) {
+                    try {
+                        inv = queryInventory(previous, querySkuDetails, moreSkus, moreSubsSkus);
+                        break;
+                    }
+                    catch (IabException ex) {
+                        if (!shouldReplay(ex, attempt)) {
+                            result = ex.getResult();
+                            break;
+                        }
+                    }
                 }
 
-                flagEndAsync();
+                finishAsync(op);
 
                 final IabResult result_f = result;
                 final Inventory inv_f = inv;
@@ -613,15 +1020,15 @@ public class IabHelper {
                     }
                 });
             }
-        })).start();
+        });
     }
 
-    public void queryInventoryAsync(QueryInventoryFinishedListener listener) {
-        queryInventoryAsync(true, null, null, listener);
+    public IabOperation queryInventoryAsync(QueryInventoryFinishedListener listener) {
+        return queryInventoryAsync(true, null, null, listener);
     }
 
-    public void queryInventoryAsync(boolean querySkuDetails, QueryInventoryFinishedListener listener) {
-        queryInventoryAsync(querySkuDetails, null, null, listener);
+    public IabOperation queryInventoryAsync(boolean querySkuDetails, QueryInventoryFinishedListener listener) {
+        return queryInventoryAsync(querySkuDetails, null, null, listener);
     }
 
 
@@ -635,6 +1042,12 @@ public class IabHelper {
      * @throws IabException if there is a problem during consumption.
      */
     void consume(Purchase itemInfo) throws IabException {
+        consume(itemInfo, null);
+    }
+
+    // Same as consume(Purchase), but sets dispatched[0] once the request has been handed
+    // to the service, so a caller can tell a call lost in flight from one never sent.
+    void consume(Purchase itemInfo, boolean[] dispatched) throws IabException {
         checkSetupDone("consume");
         
         if (!itemInfo.mItemType.equals(ITEM_TYPE_INAPP)) {
@@ -652,7 +1065,9 @@ public class IabHelper {
             }
 
             logDebug("Consuming sku: " + sku + ", token: " + token);
-            int response = mService.consumePurchase(3, mContext.getPackageName(), token);
+            IInAppBillingService service = service();
+            if (dispatched != null) dispatched[0] = true;
+            int response = service.consumePurchase(3, mContext.getPackageName(), token);
             if (response == BILLING_RESPONSE_RESULT_OK) {
                logDebug("Successfully consumed sku: " + sku);
             }
@@ -693,6 +1108,21 @@ public class IabHelper {
         public void onConsumeMultiFinished(List<Purchase> purchases, List<IabResult> results);
     }
 
+    /**
+     * Callback that notifies as each item of a multi-item consumption is consumed.
+     */
+    public interface OnConsumeProgressListener {
+        /**
+         * Called when one item of a multi-item consumption has been consumed (or failed to be),
+         * in completion order. Every item is reported before onConsumeMultiFinished() is called.
+         *
+         * @param purchase The purchase that was (or was to be) consumed.
+         * @param index The position of purchase in the list passed to consumeAsync().
+         * @param result The result of the consumption operation.
+         */
+        public void onConsumeProgress(Purchase purchase, int index, IabResult result);
+    }
+
     /**
      * Asynchronous wrapper to item consumption. Works like {@link #consume}, but
      * performs the consumption in the background and notifies completion through
@@ -700,22 +1130,39 @@ public class IabHelper {
      *
      * @param purchase The purchase to be consumed.
      * @param listener The listener to notify when the consumption operation finishes.
+     * @return the operation, which waits while the same purchase is being consumed or
+     *     while an inventory query or purchase is in progress.
      */
-    public void consumeAsync(Purchase purchase, OnConsumeFinishedListener listener) {
+    public IabOperation consumeAsync(Purchase purchase, OnConsumeFinishedListener listener) {
         checkSetupDone("consume");
         List<Purchase> purchases = new ArrayList<Purchase>();
         purchases.add(purchase);
-        consumeAsyncInternal(purchases, listener, null);
+        return consumeAsyncInternal(purchases, listener, null, null);
     }
 
     /**
      * Same as {@link consumeAsync}, but for multiple items at once.
      * @param purchases The list of PurchaseInfo objects representing the purchases to consume.
      * @param listener The listener to notify when the consumption operation finishes.
+     * @return the operation
+     */
+    public IabOperation consumeAsync(List<Purchase> purchases, OnConsumeMultiFinishedListener listener) {
+        return consumeAsync(purchases, listener, null);
+    }
+
+    /**
+     * Same as {@link #consumeAsync(List, OnConsumeMultiFinishedListener)}, but also reports
+     * each item as soon as it is consumed. Up to {@link #setConsumeParallelism} items are
+     * consumed at once.
+     * @param purchases The list of PurchaseInfo objects representing the purchases to consume.
+     * @param listener The listener to notify when the consumption operation finishes.
+     * @param progressListener The listener to notify of each item (may be null).
+     * @return the operation
      */
-    public void consumeAsync(List<Purchase> purchases, OnConsumeMultiFinishedListener listener) {
+    public IabOperation consumeAsync(List<Purchase> purchases, OnConsumeMultiFinishedListener listener,
+                                     OnConsumeProgressListener progressListener) {
         checkSetupDone("consume");
-        consumeAsyncInternal(purchases, null, listener);
+        return consumeAsyncInternal(purchases, null, listener, progressListener);
     }
 
     /**
@@ -793,22 +1240,114 @@ public class IabHelper {
         }
     }
 
-    void flagStartAsync(String operation) {
-        if (mAsyncInProgress) throw new IllegalStateException("Can't start async operation (" +
-                operation + ") because another async operation(" + mAsyncOperation + ") is in progress.");
-        mAsyncOperation = operation;
-        mAsyncInProgress = true;
-        logDebug("Starting async operation: " + operation);
+    // Returns the service, or throws if the connection is currently lost.
+    IInAppBillingService service() throws RemoteException {
+        IInAppBillingService service = mService;
+        if (service == null) throw new DeadObjectException();
+        return service;
+    }
+
+    // Rebinds to the service after a delay. Called on the main thread.
+    void scheduleReconnect() {
+        if (mReconnectHandler == null) {
+            mReconnectHandler = new Handler(mContext.getMainLooper());
+            mReconnectRunnable = new Runnable() {
+                public void run() {
+                    reconnect();
+                }
+            };
+        }
+        mReconnectHandler.removeCallbacks(mReconnectRunnable);
+        long delay = mReconnectBackoff.nextDelay();
+        logDebug("Rebinding to billing service in " + delay + " ms.");
+        mReconnectHandler.postDelayed(mReconnectRunnable, delay);
+    }
+
+    void cancelReconnect() {
+        if (mReconnectHandler != null) mReconnectHandler.removeCallbacks(mReconnectRunnable);
+    }
+
+    // Binds again, unless the service came back on its own or we were disposed of.
+    void reconnect() {
+        if (mServiceConn == null || mService != null) return;
+        logDebug("Rebinding to billing service, attempt " + mReconnectBackoff.getAttempts());
+        try {
+            mContext.unbindService(mServiceConn);
+        }
+        catch (IllegalArgumentException e) {
+            // Not bound any more; bind below anyway.
+        }
+        if (!mContext.bindService(mServiceIntent, mServiceConn, Context.BIND_AUTO_CREATE)) {
+            logWarn("Couldn't rebind to billing service.");
+        }
+        // Try again later if this attempt doesn't connect either.
+        scheduleReconnect();
+    }
+
+    // Whether a request that failed with ex should be made again: it failed because the
+    // service went away, and the service came back within the replay timeout. Blocks the
+    // calling worker thread while waiting.
+    boolean shouldReplay(IabException ex, int attempt) {
+        if (ex.getResult().getResponse() != IABHELPER_REMOTE_EXCEPTION) return false;
+        if (attempt >= MAX_REPLAYS || mReplayTimeout <= 0) return false;
+        logDebug("Lost billing service during request; waiting to replay it.");
+        long deadline = SystemClock.elapsedRealtime() + mReplayTimeout;
+        synchronized (mConnectionLock) {
+            while (mService == null) {
+                long left = deadline - SystemClock.elapsedRealtime();
+                if (mServiceConn == null || left <= 0) return false;
+                try {
+                    mConnectionLock.wait(left);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        logDebug("Replaying request (attempt " + (attempt + 2) + ").");
+        return true;
     }
 
-    void flagEndAsync() {
-        logDebug("Ending async operation: " + mAsyncOperation);
-        mAsyncOperation = "";
-        mAsyncInProgress = false;
+    // Runs op's work on the executor now if nothing conflicts with it, otherwise once the
+    // conflicting operations finish. If the executor turns op down, its listener is told.
+    IabOperation startAsync(final IabOperation op, final Runnable work) {
+        op.mDeferredStart = new Runnable() {
+            public void run() {
+                logDebug("Starting async operation: " + op.getName());
+                executeAsync(op, work);
+            }
+        };
+        if (mScheduler.tryStart(op)) {
+            try {
+                op.mDeferredStart.run();
+            }
+            catch (RejectedExecutionException e) {
+                logError("Couldn't start " + op.getName() + ": " + e);
+                if (op.mOnStartFailed != null) {
+                    op.mOnStartFailed.onStartFailed(new IabResult(IABHELPER_UNKNOWN_ERROR,
+                            "Couldn't start " + op.getName() + ": " + e));
+                }
+            }
+        }
+        else {
+            logDebug("Queueing async operation: " + op.getName());
+        }
+        return op;
+    }
+
+    void finishAsync(IabOperation op) {
+        logDebug("Ending async operation: " + op.getName());
+        mScheduler.finish(op);
     }
 
 
     int queryPurchases(Inventory inv, String itemType) throws JSONException, RemoteException {
+        return queryPurchases(inv, itemType, null);
+    }
+
+    int queryPurchases(Inventory inv, String itemType, Inventory previous)
+                                throws JSONException, RemoteException {
         // Query purchases
         logDebug("Querying owned items, item type: " + itemType);
         logDebug("Package name: " + mContext.getPackageName());
@@ -817,7 +1356,7 @@ public class IabHelper {
 
         do {
             logDebug("Calling getPurchases with continuation token: " + continueToken);
-            Bundle ownedItems = mService.getPurchases(3, mContext.getPackageName(),
+            Bundle ownedItems = service().getPurchases(3, mContext.getPackageName(),
                     itemType, continueToken);
 
             int response = getResponseCodeFromBundle(ownedItems);
@@ -840,21 +1379,55 @@ public class IabHelper {
             ArrayList<String> signatureList = ownedItems.getStringArrayList(
                         RESPONSE_INAPP_SIGNATURE_LIST);
 
+            // Receipts unchanged since the previous inventory were verified back then.
+            Purchase[] known = new Purchase[purchaseDataList.size()];
+            List<String> newDataList = purchaseDataList;
+            List<String> newSignatureList = signatureList;
+            if (previous != null) {
+                newDataList = new ArrayList<String>();
+                newSignatureList = new ArrayList<String>();
+                for (int i = 0; i < purchaseDataList.size(); ++i) {
+                    Purchase p = previous.getPurchase(ownedSkus.get(i));
+                    if (p != null && itemType.equals(p.getItemType())
+                            && purchaseDataList.get(i).equals(p.getOriginalJson())
+                            && signatureList.get(i).equals(p.getSignature())) {
+                        known[i] = p;
+                    }
+                    else {
+                        newDataList.add(purchaseDataList.get(i));
+                        newSignatureList.add(signatureList.get(i));
+                    }
+                }
+                logDebug("Unchanged purchases: " + (purchaseDataList.size() - newDataList.size())
+                        + ", new: " + newDataList.size());
+            }
+
+            // Verify the new receipts up front; this spreads the RSA work over all cores.
+            boolean[] verified = BatchVerifier.verify(mSignatureBase64, newDataList, newSignatureList);
+
+            // Published to the inventory once per page.
+            List<Purchase> page = new ArrayList<Purchase>(purchaseDataList.size());
+            int n = 0;
             for (int i = 0; i < purchaseDataList.size(); ++i) {
+                if (known[i] != null) {
+                    page.add(known[i]);
+                    continue;
+                }
                 String purchaseData = purchaseDataList.get(i);
                 String signature = signatureList.get(i);
                 String sku = ownedSkus.get(i);
-                if (Security.verifyPurchase(mSignatureBase64, purchaseData, signature)) {
+                if (verified[n++]) {
                     logDebug("Sku is owned: " + sku);
-                    Purchase purchase = new Purchase(itemType, purchaseData, signature);
+                    Purchase purchase = new Purchase(itemType, purchaseData, signature, true);
 
-                    if (TextUtils.isEmpty(purchase.getToken())) {
+                    // Reading the token would decode the whole purchase, so only check it when debugging.
+                    if (mDebugLog && TextUtils.isEmpty(purchase.getToken())) {
                         logWarn("BUG: empty/null token!");
                         logDebug("Purchase data: " + purchaseData);
                     }
 
                     // Record ownership and token
-                    inv.addPurchase(purchase);
+                    page.add(purchase);
                 }
                 else {
                     logWarn("Purchase signature verification **FAILED**. Not adding item.");
@@ -863,6 +1436,7 @@ public class IabHelper {
                     verificationFailed = true;
                 }
             }
+            inv.addAllPurchases(page);
 
             continueToken = ownedItems.getString(INAPP_CONTINUATION_TOKEN);
             logDebug("Continuation token: " + continueToken);
@@ -873,19 +1447,182 @@ public class IabHelper {
 
     int querySkuDetails(String itemType, Inventory inv, List<String> moreSkus) 
                                 throws RemoteException, JSONException {
+        return querySkuDetails(itemType, inv, moreSkus, null);
+    }
+
+    int querySkuDetails(String itemType, Inventory inv, List<String> moreSkus, Inventory previous)
+                                throws RemoteException, JSONException {
         logDebug("Querying SKU details.");
         ArrayList<String> skuList = new ArrayList<String>();
         skuList.addAll(inv.getAllOwnedSkus(itemType));
         if (moreSkus != null) skuList.addAll(moreSkus);
 
+        // Keep the details that are still fresh and only ask for the rest.
+        if (previous != null) {
+            long now = System.currentTimeMillis();
+            List<SkuDetails> fresh = new ArrayList<SkuDetails>();
+            Iterator<String> it = skuList.iterator();
+            while (it.hasNext()) {
+                SkuDetails d = previous.getSkuDetails(it.next());
+                if (d != null && itemType.equals(d.mItemType) && d.isFresh(now, mSkuDetailsMaxAge)) {
+                    fresh.add(d);
+                    it.remove();
+                }
+            }
+            inv.addAllSkuDetails(fresh);
+        }
+
+        // Then those still fresh in the cache.
+        SkuDetailsCache cache = mSkuDetailsCache;
+        if (cache != null && skuList.size() > 0) {
+            long now = System.currentTimeMillis();
+            List<SkuDetails> cached = new ArrayList<SkuDetails>();
+            Iterator<String> it = skuList.iterator();
+            while (it.hasNext()) {
+                SkuDetails d = cache.getFresh(it.next(), itemType, now);
+                if (d != null) {
+                    cached.add(d);
+                    it.remove();
+                }
+            }
+            inv.addAllSkuDetails(cached);
+        }
+
         if (skuList.size() == 0) {
             logDebug("queryPrices: nothing to do because there are no SKUs.");
             return BILLING_RESPONSE_RESULT_OK;
         }
 
+        // Owned SKUs may also be in moreSkus; ask for each one once.
+        List<SkuDetails> details = new ArrayList<SkuDetails>(skuList.size());
+        int response = fetchSkuDetails(itemType, new ArrayList<String>(new LinkedHashSet<String>(skuList)), details);
+        if (response != BILLING_RESPONSE_RESULT_OK) return response;
+        inv.addAllSkuDetails(details);
+        return BILLING_RESPONSE_RESULT_OK;
+    }
+
+    // Requests the details of skus in chunks, several at once, adding them to out and to
+    // the cache.
+    int fetchSkuDetails(String itemType, final List<String> skus, List<SkuDetails> out)
+                                throws RemoteException, JSONException {
+        final int chunkSize = mSkuDetailsChunkSize.get();
+        final int chunks = (skus.size() + chunkSize - 1) / chunkSize;
+        final String type = itemType;
+        final int[] responses = new int[chunks];
+        final Object[] results = new Object[chunks];
+        final Exception[] errors = new Exception[chunks];
+        logDebug("Requesting details of " + skus.size() + " SKUs in " + chunks + " chunks.");
+
+        int parallelism = mSkuDetailsParallelism;
+        ParallelTasks.run(getRequestPool(parallelism), parallelism, chunks, new ParallelTasks.Task() {
+            public void run(int chunk) {
+                ArrayList<String> chunkSkus = new ArrayList<String>(skus.subList(chunk * chunkSize,
+                        Math.min(skus.size(), (chunk + 1) * chunkSize)));
+                long start = System.nanoTime();
+                boolean answered = false;
+                try {
+                    List<SkuDetails> details = new ArrayList<SkuDetails>(chunkSkus.size());
+                    responses[chunk] = querySkuDetailsChunk(type, chunkSkus, details);
+                    answered = responses[chunk] == BILLING_RESPONSE_RESULT_OK;
+                    results[chunk] = details;
+                }
+                catch (RemoteException e) {
+                    errors[chunk] = e;
+                }
+                catch (JSONException e) {
+                    errors[chunk] = e;
+                }
+                mSkuDetailsChunkSize.record(chunkSkus.size(),
+                        (System.nanoTime() - start) / 1000000, answered);
+            }
+        });
+
+        // Report the first problem in request order, as a single request would have.
+        for (int i = 0; i < chunks; i++) {
+            if (errors[i] instanceof RemoteException) throw (RemoteException) errors[i];
+            if (errors[i] instanceof JSONException) throw (JSONException) errors[i];
+            if (responses[i] != BILLING_RESPONSE_RESULT_OK) return responses[i];
+        }
+
+        for (int i = 0; i < chunks; i++) {
+            @SuppressWarnings("unchecked")
+            List<SkuDetails> chunkDetails = (List<SkuDetails>) results[i];
+            out.addAll(chunkDetails);
+        }
+        SkuDetailsCache cache = mSkuDetailsCache;
+        if (cache != null) cache.putAll(out);
+        return BILLING_RESPONSE_RESULT_OK;
+    }
+
+    // Refreshes the expired entries of the SKU details cache in the background, unless a
+    // refresh is already running.
+    void refreshSkuDetailsAsync() {
+        if (!mSetupDone || !mSkuDetailsRefreshing.compareAndSet(false, true)) return;
+        final IabOperation op = mScheduler.newOperation("refresh SKU details",
+                new String[] { RESOURCE_INVENTORY }, new int[] { IabOperation.READ });
+        op.mOnStartFailed = new IabOperation.OnStartFailedListener() {
+            public void onStartFailed(IabResult result) {
+                mSkuDetailsRefreshing.set(false);
+                logWarn("Couldn't refresh SKU details: " + result);
+            }
+        };
+        startAsync(op, new Runnable() {
+            public void run() {
+                try {
+                    refreshSkuDetails();
+                }
+                finally {
+                    mSkuDetailsRefreshing.set(false);
+                    finishAsync(op);
+                }
+            }
+        });
+    }
+
+    void refreshSkuDetails() {
+        SkuDetailsCache cache = mSkuDetailsCache;
+        if (cache == null) return;
+        Map<String, List<String>> expired = cache.getExpiredSkus(System.currentTimeMillis());
+        List<String> attempted = new ArrayList<String>();
+        List<SkuDetails> refreshed = new ArrayList<SkuDetails>();
+        try {
+            for (Map.Entry<String, List<String>> e : expired.entrySet()) {
+                logDebug("Refreshing " + e.getValue().size() + " expired SKU details of type " + e.getKey());
+                attempted.addAll(e.getValue());
+                try {
+                    List<SkuDetails> details = new ArrayList<SkuDetails>();
+                    int response = fetchSkuDetails(e.getKey(), e.getValue(), details);
+                    if (response != BILLING_RESPONSE_RESULT_OK) {
+                        logWarn("Couldn't refresh SKU details: " + getResponseDesc(response));
+                    }
+                    refreshed.addAll(details);
+                }
+                catch (RemoteException ex) {
+                    logWarn("Remote exception while refreshing SKU details.");
+                }
+                catch (JSONException ex) {
+                    logWarn("Bad response while refreshing SKU details.");
+                }
+            }
+            // Keep what was renewed for the next launch, too.
+            SkuDetailsStore store = mSkuDetailsStore;
+            if (store != null && !refreshed.isEmpty()) store.save(refreshed);
+        }
+        finally {
+            // Entries still expired (the request failed, or the SKU is gone from the store) wait
+            // before they may trigger another refresh; otherwise every lookup would start one.
+            long now = System.currentTimeMillis();
+            long retryAt = now + mSkuDetailsRetryBackoff.nextDelay();
+            if (cache.postpone(attempted, now, retryAt) == 0) mSkuDetailsRetryBackoff.reset();
+        }
+    }
+
+    // Makes one getSkuDetails() request and adds what it returns to details.
+    int querySkuDetailsChunk(String itemType, ArrayList<String> skuList, List<SkuDetails> details)
+                                throws RemoteException, JSONException {
         Bundle querySkus = new Bundle();
         querySkus.putStringArrayList(GET_SKU_DETAILS_ITEM_LIST, skuList);
-        Bundle skuDetails = mService.getSkuDetails(3, mContext.getPackageName(),
+        Bundle skuDetails = service().getSkuDetails(3, mContext.getPackageName(),
                 itemType, querySkus);
         
         if (!skuDetails.containsKey(RESPONSE_GET_SKU_DETAILS_LIST)) {
@@ -903,51 +1640,133 @@ public class IabHelper {
         ArrayList<String> responseList = skuDetails.getStringArrayList(
                 RESPONSE_GET_SKU_DETAILS_LIST);
 
+        long fetchTime = System.currentTimeMillis();
         for (String thisResponse : responseList) {
-            SkuDetails d = new SkuDetails(itemType, thisResponse);
+            SkuDetails d = new SkuDetails(itemType, thisResponse, true);
+            d.mFetchTime = fetchTime;
             logDebug("Got sku details: " + d);
-            inv.addSkuDetails(d);
+            details.add(d);
         }
         return BILLING_RESPONSE_RESULT_OK;
     }
 
-    void consumeAsyncInternal(final List<Purchase> purchases,
+    // Returns the request pool, grown if needed to serve the given parallelism.
+    private static synchronized WorkerPool getRequestPool(int parallelism) {
+        // The calling thread makes requests too.
+        int threads = Math.max(1, parallelism - 1);
+        if (sRequestPool == null) {
+            sRequestPool = new WorkerPool("IabHelper-request", threads, Integer.MAX_VALUE);
+        }
+        sRequestPool.ensureThreads(threads);
+        return sRequestPool;
+    }
+
+    IabOperation consumeAsyncInternal(final List<Purchase> purchases,
                               final OnConsumeFinishedListener singleListener,
-                              final OnConsumeMultiFinishedListener multiListener) {
+                              final OnConsumeMultiFinishedListener multiListener,
+                              final OnConsumeProgressListener progressListener) {
         final Handler handler = new Handler();
-        flagStartAsync("consume");
-        (new Thread(new Runnable() {
+        // Consumptions of different purchases don't conflict; each locks its own tokens.
+        String[] resources = new String[purchases.size() + 1];
+        int[] modes = new int[resources.length];
+        resources[0] = RESOURCE_INVENTORY;
+        modes[0] = IabOperation.UPDATE;
+        for (int i = 0; i < purchases.size(); i++) {
+            resources[i + 1] = RESOURCE_TOKEN_PREFIX + purchases.get(i).getToken();
+            modes[i + 1] = IabOperation.EXCLUSIVE;
+        }
+        final IabOperation op = mScheduler.newOperation("consume", resources, modes);
+        op.mOnStartFailed = new IabOperation.OnStartFailedListener() {
+            public void onStartFailed(IabResult result) {
+                IabResult[] failed = new IabResult[purchases.size()];
+                Arrays.fill(failed, result);
+                postConsumeResults(handler, purchases, Arrays.asList(failed), singleListener, multiListener);
+            }
+        };
+        return startAsync(op, new Runnable() {
             public void run() {
-                final List<IabResult> results = new ArrayList<IabResult>();
-                for (Purchase purchase : purchases) {
-                    try {
-                        consume(purchase);
-                        results.add(new IabResult(BILLING_RESPONSE_RESULT_OK, "Successful consume of sku " + purchase.getSku()));
-                    }
-                    catch (IabException ex) {
-                        results.add(ex.getResult());
+                final IabResult[] consumed = new IabResult[purchases.size()];
+                int parallelism = mConsumeParallelism;
+                ParallelTasks.run(getRequestPool(parallelism), parallelism, consumed.length,
+                        new ParallelTasks.Task() {
+                    public void run(final int index) {
+                        final Purchase purchase = purchases.get(index);
+                        IabResult result;
+                        boolean[] dispatched = new boolean[1];
+                        boolean lostInFlight = false;
+                        for (int attempt = 0; ; attempt++) {
+                            dispatched[0] = false;
+                            try {
+                                consume(purchase, dispatched);
+                                result = new IabResult(BILLING_RESPONSE_RESULT_OK, "Successful consume of sku " + purchase.getSku());
+                                break;
+                            }
+                            catch (IabException ex) {
+                                int response = ex.getResult().getResponse();
+                                // A consume isn't idempotent: the service may have applied a
+                                // request it died in the middle of, in which case the replay
+                                // finds the item gone. That is the outcome we wanted.
+                                if (lostInFlight && response == BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED) {
+                                    logDebug("Replayed consume of sku " + purchase.getSku() + " found it already consumed.");
+                                    result = new IabResult(BILLING_RESPONSE_RESULT_OK, "Successful consume of sku " + purchase.getSku());
+                                    break;
+                                }
+                                if (!shouldReplay(ex, attempt)) {
+                                    result = ex.getResult();
+                                    break;
+                                }
+                                // Only a request that reached the service can have been applied.
+                                if (dispatched[0] && response == IABHELPER_REMOTE_EXCEPTION) lostInFlight = true;
+                            }
+                        }
+                        consumed[index] = result;
+
+                        if (progressListener != null) {
+                            final IabResult result_f = result;
+                            handler.post(new Runnable() {
+                                public void run() {
+                                    progressListener.onConsumeProgress(purchase, index, result_f);
+                                }
+                            });
+                        }
                     }
-                }
+                });
+                finishAsync(op);
+                postConsumeResults(handler, purchases, Arrays.asList(consumed), singleListener, multiListener);
+            }
+        });
+    }
 
-                flagEndAsync();
-                if (singleListener != null) {
-                    handler.post(new Runnable() {
-                        public void run() {
-                            singleListener.onConsumeFinished(purchases.get(0), results.get(0));
-                        }
-                    });
+    void postConsumeResults(Handler handler, final List<Purchase> purchases, final List<IabResult> results,
+                            final OnConsumeFinishedListener singleListener,
+                            final OnConsumeMultiFinishedListener multiListener) {
+        if (singleListener != null) {
+            handler.post(new Runnable() {
+                public void run() {
+                    singleListener.onConsumeFinished(purchases.get(0), results.get(0));
                 }
-                if (multiListener != null) {
-                    handler.post(new Runnable() {
-                        public void run() {
-                            multiListener.onConsumeMultiFinished(purchases, results);
-                        }
-                    });
+            });
+        }
+        if (multiListener != null) {
+            handler.post(new Runnable() {
+                public void run() {
+                    multiListener.onConsumeMultiFinished(purchases, results);
                 }
-            }
-        })).start();
+            });
+        }
     }
     
+    // Runs the work of an async operation; finishes the operation if it can't be run.
+    void executeAsync(IabOperation op, Runnable work) {
+        try {
+            getExecutor().execute(work);
+        }
+        catch (RejectedExecutionException e) {
+            finishAsync(op);
+            throw e;
+        }
+    }
+
     void logDebug(String msg) {
         if (mDebugLog) Log.d(mDebugTag, msg);
     }
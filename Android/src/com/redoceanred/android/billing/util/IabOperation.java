@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+/**
+ * Handle to an asynchronous operation started by {@link IabHelper}, such as an inventory
+ * query, a consumption or a purchase flow. Operations that would conflict with one
+ * already running (or queued before them) wait their turn instead of failing; this
+ * handle tells where the operation is and lets the caller cancel it while it waits.
+ */
+public class IabOperation {
+    // Lock modes for the resources an operation uses. Two operations conflict if they
+    // use the same resource and their modes aren't both READ or both UPDATE.
+    static final int READ = 0;
+    static final int UPDATE = 1;
+    static final int EXCLUSIVE = 2;
+
+    static final int WAITING = 0;
+    static final int RUNNING = 1;
+    static final int DONE = 2;
+    static final int CANCELLED = 3;
+
+    final String mName;
+    final String[] mResources;
+    final int[] mModes;
+    final OperationScheduler mScheduler;
+
+    // Starts the operation when it leaves the queue.
+    Runnable mDeferredStart;
+
+    // Tells the operation's listener that it couldn't be started.
+    OnStartFailedListener mOnStartFailed;
+
+    /** Reports an operation that couldn't be started. */
+    interface OnStartFailedListener {
+        void onStartFailed(IabResult result);
+    }
+
+    volatile int mState = WAITING;
+
+    IabOperation(OperationScheduler scheduler, String name, String[] resources, int[] modes) {
+        mScheduler = scheduler;
+        mName = name;
+        mResources = resources;
+        mModes = modes;
+    }
+
+    /** Returns a short description of the operation, e.g. "consume". */
+    public String getName() { return mName; }
+
+    /** Returns whether the operation is queued behind a conflicting one. */
+    public boolean isWaiting() { return mState == WAITING; }
+    /** Returns whether the operation has started and not finished yet. */
+    public boolean isRunning() { return mState == RUNNING; }
+    /** Returns whether the operation has finished; its listener has been or is being called. */
+    public boolean isDone() { return mState == DONE; }
+    /** Returns whether the operation was cancelled before it started. */
+    public boolean isCancelled() { return mState == CANCELLED; }
+
+    /**
+     * Cancels the operation if it hasn't started yet. A cancelled operation doesn't call
+     * its listener.
+     *
+     * @return true if the operation was still waiting and won't run
+     */
+    public boolean cancel() {
+        return mScheduler.cancel(this);
+    }
+
+    boolean conflictsWith(IabOperation other) {
+        for (int i = 0; i < mResources.length; i++) {
+            for (int j = 0; j < other.mResources.length; j++) {
+                if (!mResources[i].equals(other.mResources[j])) continue;
+                int a = mModes[i], b = other.mModes[j];
+                if (a != b || a == EXCLUSIVE) return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "IabOperation(" + mName + ")";
+    }
+}
@@ -15,39 +15,231 @@
 
 package com.redoceanred.android.billing.util;
 
+import android.text.TextUtils;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Represents a block of information about in-app items.
  * An Inventory is returned by such methods as {@link IabHelper#queryInventory}.
+ *
+ * An Inventory can be read from any thread while it is being filled or edited. Its
+ * contents live in an immutable {@link Snapshot}; every change builds a new snapshot and
+ * publishes it atomically, so reads take no lock and never see a half-updated map.
+ * Snapshots are backed by {@link PersistentHashMap}s, so a new one shares almost all
+ * of its structure with the one before; see {@link InventoryHistory} for keeping
+ * several generations around.
  */
 public class Inventory {
-    Map<String,SkuDetails> mSkuMap = new HashMap<String,SkuDetails>();
-    Map<String,Purchase> mPurchaseMap = new HashMap<String,Purchase>();
+    /** The contents of an inventory at one point in time. Never modified once published. */
+    static final class Snapshot {
+        private static final AtomicLong sLastVersion = new AtomicLong();
+
+        static final Snapshot EMPTY = new Snapshot(PersistentHashMap.<String,SkuDetails>empty(),
+                PersistentHashMap.<String,Purchase>empty());
+
+        final PersistentHashMap<String,SkuDetails> mSkuMap;
+        final PersistentHashMap<String,Purchase> mPurchaseMap;
+        // Larger for every snapshot published later in this process.
+        final long mVersion = sLastVersion.incrementAndGet();
+
+        private volatile Long mContentHash;
+        // Indexes over mPurchaseMap, built on first use. Two threads may race to build
+        // one; both get the same result, so that is harmless.
+        private volatile Map<String,List<String>> mSkusByType;
+        private volatile PurchaseIndexes mPurchaseIndexes;
+
+        Snapshot(PersistentHashMap<String,SkuDetails> skuMap, PersistentHashMap<String,Purchase> purchaseMap) {
+            mSkuMap = skuMap;
+            mPurchaseMap = purchaseMap;
+        }
+
+        /**
+         * Hash of the contents: purchases (SKU, type, receipt, signature) and SKU details
+         * (SKU, type, JSON), independent of order. Equal contents give equal hashes,
+         * also across launches.
+         */
+        long contentHash() {
+            Long hash = mContentHash;
+            if (hash == null) {
+                long h = 0;
+                for (Purchase p : mPurchaseMap.values()) {
+                    h += mix(1, p.getSku(), p.getItemType(), p.getOriginalJson(), p.getSignature());
+                }
+                for (SkuDetails d : mSkuMap.values()) {
+                    h += mix(2, d.getSku(), d.mItemType, d.getJson(), null);
+                }
+                hash = Long.valueOf(h);
+                mContentHash = hash;
+            }
+            return hash.longValue();
+        }
+
+        private static long mix(int kind, String a, String b, String c, String d) {
+            long h = kind;
+            h = h * 0x9E3779B97F4A7C15L + (a != null ? a.hashCode() : 0);
+            h = h * 0x9E3779B97F4A7C15L + (b != null ? b.hashCode() : 0);
+            h = h * 0x9E3779B97F4A7C15L + (c != null ? c.hashCode() : 0);
+            h = h * 0x9E3779B97F4A7C15L + (d != null ? d.hashCode() : 0);
+            // Finalizer from MurmurHash3, so that summing the entries doesn't cancel bits out.
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+
+        /** Owned SKUs partitioned by item type. Doesn't decode lazily parsed purchases. */
+        Map<String,List<String>> skusByType() {
+            Map<String,List<String>> byType = mSkusByType;
+            if (byType == null) {
+                byType = new HashMap<String,List<String>>();
+                for (Purchase p : mPurchaseMap.values()) {
+                    List<String> skus = byType.get(p.getItemType());
+                    if (skus == null) {
+                        skus = new ArrayList<String>();
+                        byType.put(p.getItemType(), skus);
+                    }
+                    skus.add(p.getSku());
+                }
+                mSkusByType = byType;
+            }
+            return byType;
+        }
+
+        PurchaseIndexes purchaseIndexes() {
+            PurchaseIndexes indexes = mPurchaseIndexes;
+            if (indexes == null) {
+                indexes = new PurchaseIndexes(mPurchaseMap.values());
+                mPurchaseIndexes = indexes;
+            }
+            return indexes;
+        }
+    }
+
+    /** Purchases by order ID, by token and in purchase time order. */
+    static final class PurchaseIndexes {
+        final Map<String,Purchase> mByOrderId = new HashMap<String,Purchase>();
+        final Map<String,Purchase> mByToken = new HashMap<String,Purchase>();
+        // Sorted by purchase time; mTimes[i] is mByTime[i].getPurchaseTime().
+        final Purchase[] mByTime;
+        final long[] mTimes;
+
+        PurchaseIndexes(Collection<Purchase> purchases) {
+            mByTime = purchases.toArray(new Purchase[purchases.size()]);
+            Arrays.sort(mByTime, new Comparator<Purchase>() {
+                public int compare(Purchase a, Purchase b) {
+                    long ta = a.getPurchaseTime(), tb = b.getPurchaseTime();
+                    return ta < tb ? -1 : (ta == tb ? 0 : 1);
+                }
+            });
+            mTimes = new long[mByTime.length];
+            for (int i = 0; i < mByTime.length; i++) {
+                Purchase p = mByTime[i];
+                mTimes[i] = p.getPurchaseTime();
+                // Test purchases have no order ID; don't index them all under "".
+                if (!TextUtils.isEmpty(p.getOrderId())) mByOrderId.put(p.getOrderId(), p);
+                if (!TextUtils.isEmpty(p.getToken())) mByToken.put(p.getToken(), p);
+            }
+        }
+
+        /** Returns the first index whose purchase time is at least time. */
+        int lowerBound(long time) {
+            int lo = 0, hi = mTimes.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (mTimes[mid] < time) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    private final AtomicReference<Snapshot> mSnapshot = new AtomicReference<Snapshot>(Snapshot.EMPTY);
+
+    // Details from an earlier launch, for SKUs this inventory has none for (may be null)
+    private volatile SkuDetailsStore mDetailsStore;
 
     Inventory() { }
 
+    private Inventory(Snapshot snapshot) {
+        mSnapshot.set(snapshot);
+    }
+
+    /**
+     * Returns an independent inventory with the current contents. This costs O(1): the
+     * two share their structure until either is changed.
+     */
+    public Inventory copy() {
+        Inventory copy = new Inventory(mSnapshot.get());
+        copy.mDetailsStore = mDetailsStore;
+        return copy;
+    }
+
+    /**
+     * Sets where {@link #getSkuDetails} and {@link #hasDetails} look for SKUs this inventory
+     * has no details for, e.g. before the live query has come back. Stored details only
+     * answer those two; they are not part of the contents, versions or diffs.
+     */
+    public void setSkuDetailsStore(SkuDetailsStore store) {
+        mDetailsStore = store;
+    }
+
+    /** Returns the current contents. */
+    Snapshot snapshot() {
+        return mSnapshot.get();
+    }
+
+    /**
+     * Returns the version of the current contents. It grows every time this or any other
+     * inventory changes, so an unchanged version means unchanged contents. Versions are
+     * only comparable within one process.
+     */
+    public long getVersion() {
+        return mSnapshot.get().mVersion;
+    }
+
+    /**
+     * Returns a hash of the current contents. Unlike {@link #getVersion} it only depends
+     * on what the inventory holds, so it can be stored and compared across launches.
+     */
+    public long getContentHash() {
+        return mSnapshot.get().contentHash();
+    }
+
     /** Returns the listing details for an in-app product. */
     public SkuDetails getSkuDetails(String sku) {
-        return mSkuMap.get(sku);
+        SkuDetails d = mSnapshot.get().mSkuMap.get(sku);
+        if (d == null) {
+            SkuDetailsStore store = mDetailsStore;
+            if (store != null) d = store.get(sku);
+        }
+        return d;
     }
 
     /** Returns purchase information for a given product, or null if there is no purchase. */
     public Purchase getPurchase(String sku) {
-        return mPurchaseMap.get(sku);
+        return mSnapshot.get().mPurchaseMap.get(sku);
     }
 
     /** Returns whether or not there exists a purchase of the given product. */
     public boolean hasPurchase(String sku) {
-        return mPurchaseMap.containsKey(sku);
+        return mSnapshot.get().mPurchaseMap.containsKey(sku);
     }
 
     /** Return whether or not details about the given product are available. */
     public boolean hasDetails(String sku) {
-        return mSkuMap.containsKey(sku);
+        return getSkuDetails(sku) != null;
     }
 
     /**
@@ -59,33 +251,124 @@ public class Inventory {
      * a new Inventory.
      */
     public void erasePurchase(String sku) {
-        if (mPurchaseMap.containsKey(sku)) mPurchaseMap.remove(sku);
+        while (true) {
+            Snapshot current = mSnapshot.get();
+            PersistentHashMap<String,Purchase> purchases = current.mPurchaseMap.minus(sku);
+            if (purchases == current.mPurchaseMap) return;
+            if (mSnapshot.compareAndSet(current, new Snapshot(current.mSkuMap, purchases))) return;
+        }
+    }
+
+    /** Returns the purchase with the given order ID, or null if there is none. */
+    public Purchase getPurchaseByOrderId(String orderId) {
+        return mSnapshot.get().purchaseIndexes().mByOrderId.get(orderId);
+    }
+
+    /** Returns the purchase with the given purchase token, or null if there is none. */
+    public Purchase getPurchaseByToken(String token) {
+        return mSnapshot.get().purchaseIndexes().mByToken.get(token);
+    }
+
+    /**
+     * Returns the purchases made at or after the given time, oldest first.
+     *
+     * @param time purchase time in milliseconds since the epoch, as in {@link Purchase#getPurchaseTime}
+     */
+    public List<Purchase> getPurchasesSince(long time) {
+        PurchaseIndexes indexes = mSnapshot.get().purchaseIndexes();
+        int from = indexes.lowerBound(time);
+        return new ArrayList<Purchase>(Arrays.asList(indexes.mByTime).subList(from, indexes.mByTime.length));
+    }
+
+    /**
+     * Returns the purchases made at or after fromTime and before toTime, oldest first.
+     */
+    public List<Purchase> getPurchasesBetween(long fromTime, long toTime) {
+        PurchaseIndexes indexes = mSnapshot.get().purchaseIndexes();
+        int from = indexes.lowerBound(fromTime);
+        int to = Math.max(from, indexes.lowerBound(toTime));
+        return new ArrayList<Purchase>(Arrays.asList(indexes.mByTime).subList(from, to));
     }
 
     /** Returns a list of all owned product IDs. */
     List<String> getAllOwnedSkus() {
-        return new ArrayList<String>(mPurchaseMap.keySet());
+        return new ArrayList<String>(mSnapshot.get().mPurchaseMap.keySet());
     }
     
     /** Returns a list of all owned product IDs of a given type */
     List<String> getAllOwnedSkus(String itemType) {
-        List<String> result = new ArrayList<String>();
-        for (Purchase p : mPurchaseMap.values()) {
-            if (p.getItemType().equals(itemType)) result.add(p.getSku());
-        }
-        return result;
+        List<String> skus = mSnapshot.get().skusByType().get(itemType);
+        return skus != null ? new ArrayList<String>(skus) : new ArrayList<String>();
     }
 
     /** Returns a list of all purchases. */
     List<Purchase> getAllPurchases() {
-        return new ArrayList<Purchase>(mPurchaseMap.values());
+        return new ArrayList<Purchase>(mSnapshot.get().mPurchaseMap.values());
+    }
+
+    /** Returns a list of all SKU details. */
+    List<SkuDetails> getAllSkuDetails() {
+        return new ArrayList<SkuDetails>(mSnapshot.get().mSkuMap.values());
     }
 
     void addSkuDetails(SkuDetails d) {
-        mSkuMap.put(d.getSku(), d);
+        addAllSkuDetails(Collections.singletonList(d));
     }
 
     void addPurchase(Purchase p) {
-        mPurchaseMap.put(p.getSku(), p);
+        addAllPurchases(Collections.singletonList(p));
+    }
+
+    /** Adds several SKU details as a single new snapshot, e.g. one response page. */
+    void addAllSkuDetails(Collection<SkuDetails> details) {
+        if (details.isEmpty()) return;
+        while (true) {
+            Snapshot current = mSnapshot.get();
+            PersistentHashMap<String,SkuDetails> skus = current.mSkuMap;
+            for (SkuDetails d : details) skus = skus.plus(d.getSku(), d);
+            if (skus == current.mSkuMap) return;
+            if (mSnapshot.compareAndSet(current, new Snapshot(skus, current.mPurchaseMap))) return;
+        }
+    }
+
+    /** Adds several purchases as a single new snapshot, e.g. one getPurchases() page. */
+    void addAllPurchases(Collection<Purchase> purchases) {
+        if (purchases.isEmpty()) return;
+        while (true) {
+            Snapshot current = mSnapshot.get();
+            PersistentHashMap<String,Purchase> owned = current.mPurchaseMap;
+            for (Purchase p : purchases) owned = owned.plus(p.getSku(), p);
+            if (owned == current.mPurchaseMap) return;
+            if (mSnapshot.compareAndSet(current, new Snapshot(current.mSkuMap, owned))) return;
+        }
+    }
+
+    /**
+     * Rebuilds the current contents on top of base's maps, so that entries this inventory
+     * shares with base (same objects under the same SKU) also share base's structure.
+     * The contents don't change. Used after an incremental refresh, which fills a new
+     * inventory from scratch but reuses most of the previous one's objects.
+     */
+    void shareStructureWith(Inventory base) {
+        Snapshot from = base.mSnapshot.get();
+        while (true) {
+            Snapshot current = mSnapshot.get();
+            PersistentHashMap<String,Purchase> purchases = rebase(from.mPurchaseMap, current.mPurchaseMap);
+            PersistentHashMap<String,SkuDetails> skus = rebase(from.mSkuMap, current.mSkuMap);
+            if (mSnapshot.compareAndSet(current, new Snapshot(skus, purchases))) return;
+        }
+    }
+
+    // Returns a map equal to target, built by applying the differences to base.
+    private static <V> PersistentHashMap<String,V> rebase(PersistentHashMap<String,V> base,
+                                                         PersistentHashMap<String,V> target) {
+        PersistentHashMap<String,V> result = base;
+        for (String key : base.keySet()) {
+            if (!target.containsKey(key)) result = result.minus(key);
+        }
+        for (Map.Entry<String,V> e : target.entrySet()) {
+            result = result.plus(e.getKey(), e.getValue());
+        }
+        return result;
     }
 }
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of {@link Purchase}, {@link SkuDetails} and whole {@link Inventory}
+ * objects, so they can be persisted or handed around without going through JSON again.
+ *
+ * <pre>
+ *   int   magic ('IABI')
+ *   int   version
+ *   int   string count, then for each string: int length, UTF-8 bytes
+ *   int   section count, then for each section: int tag, int length, payload
+ * </pre>
+ *
+ * Every string field is written as an index into the string table (-1 for null), so
+ * repeated values like the package name and item type are stored once. Sections with
+ * an unknown tag are skipped, so newer writers can add sections without breaking older
+ * readers; a different version is rejected. All values are big-endian.
+ *
+ * Decoding reads straight out of the given buffer, which may be a memory-mapped file,
+ * and only turns a string into a String the first time a record refers to it.
+ */
+public final class InventoryCodec {
+    static final int MAGIC = 0x49414249; // "IABI"
+    static final int VERSION = 1;
+
+    static final int SECTION_PURCHASES = 1;
+    static final int SECTION_SKU_DETAILS = 2;
+
+    private static final int NULL_STRING = -1;
+
+    private InventoryCodec() {
+    }
+
+    /** Encodes a whole inventory: all of its purchases and SKU details. */
+    public static byte[] encode(Inventory inv) {
+        return encode(inv.getAllPurchases(), inv.getAllSkuDetails());
+    }
+
+    /** Encodes the purchases of an inventory, leaving out its SKU details. */
+    static byte[] encodePurchases(Inventory inv) {
+        return encode(inv.getAllPurchases(), new ArrayList<SkuDetails>(0));
+    }
+
+    /** Encodes a single purchase. */
+    public static byte[] encode(Purchase p) {
+        List<Purchase> purchases = new ArrayList<Purchase>(1);
+        purchases.add(p);
+        return encode(purchases, new ArrayList<SkuDetails>(0));
+    }
+
+    /** Encodes a single SkuDetails. */
+    public static byte[] encode(SkuDetails d) {
+        List<SkuDetails> details = new ArrayList<SkuDetails>(1);
+        details.add(d);
+        return encode(new ArrayList<Purchase>(0), details);
+    }
+
+    /**
+     * Decodes an inventory written by {@link #encode(Inventory)}. The buffer is read from
+     * its position up to its limit; its position is left after the encoded data.
+     *
+     * @throws IOException if the data is truncated, corrupt or of another version
+     */
+    public static Inventory decodeInventory(ByteBuffer buffer) throws IOException {
+        Reader reader = new Reader(buffer);
+        Inventory inv = new Inventory();
+        inv.addAllPurchases(reader.mPurchases);
+        inv.addAllSkuDetails(reader.mSkuDetails);
+        return inv;
+    }
+
+    /**
+     * Decodes a purchase written by {@link #encode(Purchase)}.
+     *
+     * @throws IOException if the data is truncated, corrupt or doesn't hold exactly one purchase
+     */
+    public static Purchase decodePurchase(ByteBuffer buffer) throws IOException {
+        Reader reader = new Reader(buffer);
+        if (reader.mPurchases.size() != 1 || !reader.mSkuDetails.isEmpty()) {
+            throw new IOException("Not an encoded purchase.");
+        }
+        return reader.mPurchases.get(0);
+    }
+
+    /**
+     * Decodes SKU details written by {@link #encode(SkuDetails)}.
+     *
+     * @throws IOException if the data is truncated, corrupt or doesn't hold exactly one SkuDetails
+     */
+    public static SkuDetails decodeSkuDetails(ByteBuffer buffer) throws IOException {
+        Reader reader = new Reader(buffer);
+        if (reader.mSkuDetails.size() != 1 || !reader.mPurchases.isEmpty()) {
+            throw new IOException("Not encoded SKU details.");
+        }
+        return reader.mSkuDetails.get(0);
+    }
+
+    private static byte[] encode(List<Purchase> purchases, List<SkuDetails> details) {
+        Writer w = new Writer();
+
+        // Records first, into int/long slots, so the string table is complete before layout.
+        int[] purchaseStrings = new int[purchases.size() * 8];
+        long[] purchaseTimes = new long[purchases.size()];
+        int[] purchaseStates = new int[purchases.size()];
+        int k = 0;
+        for (int i = 0; i < purchases.size(); i++) {
+            Purchase p = purchases.get(i);
+            purchaseStrings[k++] = w.intern(p.getItemType());
+            purchaseStrings[k++] = w.intern(p.getOrderId());
+            purchaseStrings[k++] = w.intern(p.getPackageName());
+            purchaseStrings[k++] = w.intern(p.getSku());
+            purchaseStrings[k++] = w.intern(p.getDeveloperPayload());
+            purchaseStrings[k++] = w.intern(p.getToken());
+            purchaseStrings[k++] = w.intern(p.getOriginalJson());
+            purchaseStrings[k++] = w.intern(p.getSignature());
+            purchaseTimes[i] = p.getPurchaseTime();
+            purchaseStates[i] = p.getPurchaseState();
+        }
+        int[] detailStrings = new int[details.size() * 7];
+        k = 0;
+        for (SkuDetails d : details) {
+            detailStrings[k++] = w.intern(d.mItemType);
+            detailStrings[k++] = w.intern(d.getSku());
+            detailStrings[k++] = w.intern(d.getType());
+            detailStrings[k++] = w.intern(d.getPrice());
+            detailStrings[k++] = w.intern(d.getTitle());
+            detailStrings[k++] = w.intern(d.getDescription());
+            detailStrings[k++] = w.intern(d.getJson());
+        }
+
+        int purchasesLength = 4 + purchases.size() * (8 * 4 + 8 + 4);
+        int detailsLength = 4 + details.size() * 7 * 4;
+        int size = 4 + 4 + 4 + w.mTableLength + 4 + (4 + 4 + purchasesLength) + (4 + 4 + detailsLength);
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(w.mStrings.size());
+        for (byte[] b : w.mStrings) {
+            out.putInt(b.length);
+            out.put(b);
+        }
+        out.putInt(2);
+
+        out.putInt(SECTION_PURCHASES);
+        out.putInt(purchasesLength);
+        out.putInt(purchases.size());
+        k = 0;
+        for (int i = 0; i < purchases.size(); i++) {
+            for (int j = 0; j < 8; j++) out.putInt(purchaseStrings[k++]);
+            out.putLong(purchaseTimes[i]);
+            out.putInt(purchaseStates[i]);
+        }
+
+        out.putInt(SECTION_SKU_DETAILS);
+        out.putInt(detailsLength);
+        out.putInt(details.size());
+        for (int i = 0; i < detailStrings.length; i++) out.putInt(detailStrings[i]);
+
+        return out.array();
+    }
+
+    /** Builds the string table while records are laid out. */
+    private static final class Writer {
+        final Map<String, Integer> mIndex = new HashMap<String, Integer>();
+        final List<byte[]> mStrings = new ArrayList<byte[]>();
+        // Bytes taken by the table entries, length prefixes included.
+        int mTableLength;
+
+        int intern(String s) {
+            if (s == null) return NULL_STRING;
+            Integer index = mIndex.get(s);
+            if (index != null) return index.intValue();
+            byte[] b;
+            try {
+                b = s.getBytes(Security.CHARSET);
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+            int i = mStrings.size();
+            mStrings.add(b);
+            mIndex.put(s, Integer.valueOf(i));
+            mTableLength += 4 + b.length;
+            return i;
+        }
+    }
+
+    /** Parses one encoded blob. */
+    private static final class Reader {
+        final ByteBuffer mBuffer;
+        // Where each table string starts and how long it is; decoded on first use.
+        final int[] mOffsets;
+        final int[] mLengths;
+        final String[] mDecoded;
+        final List<Purchase> mPurchases = new ArrayList<Purchase>();
+        final List<SkuDetails> mSkuDetails = new ArrayList<SkuDetails>();
+        // For buffers without an accessible array (direct or mapped).
+        byte[] mScratch;
+
+        Reader(ByteBuffer source) throws IOException {
+            mBuffer = source.duplicate().order(ByteOrder.BIG_ENDIAN);
+            try {
+                if (mBuffer.getInt() != MAGIC) throw new IOException("Bad magic number.");
+                int version = mBuffer.getInt();
+                if (version != VERSION) throw new IOException("Unsupported version " + version + ".");
+
+                int count = count(mBuffer.getInt(), 4);
+                mOffsets = new int[count];
+                mLengths = new int[count];
+                mDecoded = new String[count];
+                for (int i = 0; i < count; i++) {
+                    int length = count(mBuffer.getInt(), 1);
+                    mOffsets[i] = mBuffer.position();
+                    mLengths[i] = length;
+                    mBuffer.position(mBuffer.position() + length);
+                }
+
+                int sections = mBuffer.getInt();
+                for (int s = 0; s < sections; s++) {
+                    int tag = mBuffer.getInt();
+                    int length = count(mBuffer.getInt(), 1);
+                    int end = mBuffer.position() + length;
+                    if (tag == SECTION_PURCHASES) readPurchases();
+                    else if (tag == SECTION_SKU_DETAILS) readSkuDetails();
+                    if (mBuffer.position() > end) throw new IOException("Section overrun.");
+                    mBuffer.position(end);
+                }
+            }
+            catch (BufferUnderflowException e) {
+                throw new IOException("Truncated data.");
+            }
+            catch (IllegalArgumentException e) {
+                // position() past the limit
+                throw new IOException("Truncated data.");
+            }
+            source.position(mBuffer.position());
+        }
+
+        // Checks a count read from the buffer against the bytes left to hold its items.
+        private int count(int n, int minItemSize) throws IOException {
+            if (n < 0 || n > mBuffer.remaining() / minItemSize) throw new IOException("Bad count " + n + ".");
+            return n;
+        }
+
+        private void readPurchases() throws IOException {
+            int count = count(mBuffer.getInt(), 8 * 4 + 8 + 4);
+            for (int i = 0; i < count; i++) {
+                String itemType = string();
+                String orderId = string();
+                String packageName = string();
+                String sku = string();
+                String developerPayload = string();
+                String token = string();
+                String originalJson = string();
+                String signature = string();
+                long purchaseTime = mBuffer.getLong();
+                int purchaseState = mBuffer.getInt();
+                mPurchases.add(new Purchase(itemType, orderId, packageName, sku, purchaseTime,
+                        purchaseState, developerPayload, token, originalJson, signature));
+            }
+        }
+
+        private void readSkuDetails() throws IOException {
+            int count = count(mBuffer.getInt(), 7 * 4);
+            for (int i = 0; i < count; i++) {
+                String itemType = string();
+                String sku = string();
+                String type = string();
+                String price = string();
+                String title = string();
+                String description = string();
+                String json = string();
+                mSkuDetails.add(new SkuDetails(itemType, sku, type, price, title, description, json));
+            }
+        }
+
+        private String string() throws IOException {
+            int index = mBuffer.getInt();
+            if (index == NULL_STRING) return null;
+            if (index < 0 || index >= mDecoded.length) throw new IOException("Bad string index " + index + ".");
+            String s = mDecoded[index];
+            if (s == null) {
+                s = decodeString(mOffsets[index], mLengths[index]);
+                mDecoded[index] = s;
+            }
+            return s;
+        }
+
+        private String decodeString(int offset, int length) throws UnsupportedEncodingException {
+            if (mBuffer.hasArray()) {
+                return new String(mBuffer.array(), mBuffer.arrayOffset() + offset, length, Security.CHARSET);
+            }
+            if (mScratch == null || mScratch.length < length) mScratch = new byte[Math.max(length, 256)];
+            int position = mBuffer.position();
+            mBuffer.position(offset);
+            mBuffer.get(mScratch, 0, length);
+            mBuffer.position(position);
+            return new String(mScratch, 0, length, Security.CHARSET);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What changed between two inventories: purchases and SKU details that were added,
+ * removed or changed, keyed by SKU. A purchase counts as changed when its receipt or
+ * signature differs; SKU details when their JSON differs.
+ */
+public class InventoryDiff {
+    private final long mVersion;
+    private final long mContentHash;
+    private final List<Purchase> mAddedPurchases = new ArrayList<Purchase>();
+    private final List<Purchase> mRemovedPurchases = new ArrayList<Purchase>();
+    private final List<Purchase> mChangedPurchases = new ArrayList<Purchase>();
+    private final List<SkuDetails> mAddedSkuDetails = new ArrayList<SkuDetails>();
+    private final List<SkuDetails> mRemovedSkuDetails = new ArrayList<SkuDetails>();
+    private final List<SkuDetails> mChangedSkuDetails = new ArrayList<SkuDetails>();
+
+    private InventoryDiff(Inventory.Snapshot previous, Inventory.Snapshot current) {
+        mVersion = current.mVersion;
+        mContentHash = current.contentHash();
+        if (previous.mPurchaseMap != current.mPurchaseMap) diffPurchases(previous, current);
+        if (previous.mSkuMap != current.mSkuMap) diffSkuDetails(previous, current);
+    }
+
+    private void diffPurchases(Inventory.Snapshot previous, Inventory.Snapshot current) {
+        for (Map.Entry<String, Purchase> e : current.mPurchaseMap.entrySet()) {
+            Purchase old = previous.mPurchaseMap.get(e.getKey());
+            Purchase p = e.getValue();
+            if (old == null) mAddedPurchases.add(p);
+            else if (old != p && (!equal(old.getItemType(), p.getItemType())
+                    || !equal(old.getOriginalJson(), p.getOriginalJson())
+                    || !equal(old.getSignature(), p.getSignature()))) {
+                mChangedPurchases.add(p);
+            }
+        }
+        for (Map.Entry<String, Purchase> e : previous.mPurchaseMap.entrySet()) {
+            if (!current.mPurchaseMap.containsKey(e.getKey())) mRemovedPurchases.add(e.getValue());
+        }
+    }
+
+    private void diffSkuDetails(Inventory.Snapshot previous, Inventory.Snapshot current) {
+        for (Map.Entry<String, SkuDetails> e : current.mSkuMap.entrySet()) {
+            SkuDetails old = previous.mSkuMap.get(e.getKey());
+            SkuDetails d = e.getValue();
+            if (old == null) mAddedSkuDetails.add(d);
+            else if (old != d && (!equal(old.mItemType, d.mItemType) || !equal(old.getJson(), d.getJson()))) {
+                mChangedSkuDetails.add(d);
+            }
+        }
+        for (Map.Entry<String, SkuDetails> e : previous.mSkuMap.entrySet()) {
+            if (!current.mSkuMap.containsKey(e.getKey())) mRemovedSkuDetails.add(e.getValue());
+        }
+    }
+
+    /**
+     * Compares two inventories.
+     *
+     * @param previous the older inventory, or null to report everything in current as added
+     * @param current the newer inventory
+     */
+    public static InventoryDiff compute(Inventory previous, Inventory current) {
+        Inventory.Snapshot from = previous != null ? previous.snapshot() : Inventory.Snapshot.EMPTY;
+        return new InventoryDiff(from, current.snapshot());
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /** Returns whether nothing changed. */
+    public boolean isEmpty() {
+        return mAddedPurchases.isEmpty() && mRemovedPurchases.isEmpty() && mChangedPurchases.isEmpty()
+                && mAddedSkuDetails.isEmpty() && mRemovedSkuDetails.isEmpty() && mChangedSkuDetails.isEmpty();
+    }
+
+    /** Returns {@link Inventory#getVersion} of the newer inventory, as compared. */
+    public long getVersion() { return mVersion; }
+    /** Returns {@link Inventory#getContentHash} of the newer inventory, as compared. */
+    public long getContentHash() { return mContentHash; }
+
+    public List<Purchase> getAddedPurchases() { return Collections.unmodifiableList(mAddedPurchases); }
+    public List<Purchase> getRemovedPurchases() { return Collections.unmodifiableList(mRemovedPurchases); }
+    public List<Purchase> getChangedPurchases() { return Collections.unmodifiableList(mChangedPurchases); }
+    public List<SkuDetails> getAddedSkuDetails() { return Collections.unmodifiableList(mAddedSkuDetails); }
+    public List<SkuDetails> getRemovedSkuDetails() { return Collections.unmodifiableList(mRemovedSkuDetails); }
+    public List<SkuDetails> getChangedSkuDetails() { return Collections.unmodifiableList(mChangedSkuDetails); }
+
+    @Override
+    public String toString() {
+        return "InventoryDiff(version:" + mVersion + "): purchases +" + mAddedPurchases.size()
+                + " -" + mRemovedPurchases.size() + " ~" + mChangedPurchases.size()
+                + ", details +" + mAddedSkuDetails.size() + " -" + mRemovedSkuDetails.size()
+                + " ~" + mChangedSkuDetails.size();
+    }
+}
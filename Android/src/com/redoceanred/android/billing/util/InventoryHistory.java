@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Keeps the most recent generations of an inventory, e.g. one per refresh, for rollback
+ * and diffing. Each generation is an O(1) {@link Inventory#copy}, and consecutive
+ * generations share the structure of everything that didn't change between them, so
+ * the memory cost grows with the changes rather than with the number of generations.
+ *
+ * This class is thread-safe.
+ */
+public class InventoryHistory {
+    public static final int DEFAULT_MAX_GENERATIONS = 8;
+
+    private final int mMaxGenerations;
+    // Oldest first.
+    private final LinkedList<Inventory> mGenerations = new LinkedList<Inventory>();
+
+    public InventoryHistory() {
+        this(DEFAULT_MAX_GENERATIONS);
+    }
+
+    /**
+     * @param maxGenerations how many generations to keep; older ones are dropped
+     */
+    public InventoryHistory(int maxGenerations) {
+        if (maxGenerations < 1) throw new IllegalArgumentException("maxGenerations must be at least 1");
+        mMaxGenerations = maxGenerations;
+    }
+
+    /**
+     * Records the current contents of inv as the newest generation. Later changes to inv
+     * don't affect the recorded generation. Nothing is recorded if the contents are the
+     * same version as the newest generation.
+     */
+    public synchronized void add(Inventory inv) {
+        Inventory generation = inv.copy();
+        if (!mGenerations.isEmpty() && mGenerations.getLast().getVersion() == generation.getVersion()) return;
+        mGenerations.addLast(generation);
+        while (mGenerations.size() > mMaxGenerations) mGenerations.removeFirst();
+    }
+
+    /** Returns the newest generation, or null if there is none. */
+    public synchronized Inventory getLatest() {
+        return mGenerations.isEmpty() ? null : mGenerations.getLast().copy();
+    }
+
+    /**
+     * Returns the generation recorded n steps before the newest one (0 is the newest), or
+     * null if it isn't kept.
+     */
+    public synchronized Inventory getPrevious(int n) {
+        int i = mGenerations.size() - 1 - n;
+        return n < 0 || i < 0 ? null : mGenerations.get(i).copy();
+    }
+
+    /** Returns the generation with the given {@link Inventory#getVersion version}, or null. */
+    public synchronized Inventory getVersion(long version) {
+        for (Inventory inv : mGenerations) {
+            if (inv.getVersion() == version) return inv.copy();
+        }
+        return null;
+    }
+
+    /** Returns the versions of the kept generations, oldest first. */
+    public synchronized List<Long> getVersions() {
+        List<Long> versions = new ArrayList<Long>(mGenerations.size());
+        for (Inventory inv : mGenerations) versions.add(Long.valueOf(inv.getVersion()));
+        return versions;
+    }
+
+    /**
+     * Drops every generation newer than the given version and returns that one, which is
+     * the newest again afterwards.
+     *
+     * @return the generation rolled back to, or null (and no change) if it isn't kept
+     */
+    public synchronized Inventory rollback(long version) {
+        int i = mGenerations.size() - 1;
+        while (i >= 0 && mGenerations.get(i).getVersion() != version) i--;
+        if (i < 0) return null;
+        while (mGenerations.size() > i + 1) mGenerations.removeLast();
+        return mGenerations.getLast().copy();
+    }
+
+    /** Returns the number of kept generations. */
+    public synchronized int size() {
+        return mGenerations.size();
+    }
+
+    public synchronized void clear() {
+        mGenerations.clear();
+    }
+}
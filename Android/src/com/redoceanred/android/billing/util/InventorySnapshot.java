@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the last successfully queried {@link Inventory} in an app-private file so that
+ * entitlements and prices are available right after launch, before the billing service
+ * is bound and the live query has come back.
+ *
+ * The file holds a small header (magic, format version, payload length, CRC32 of the
+ * payload) followed by the {@link InventoryCodec} encoding of the inventory. It is
+ * replaced atomically on each save and memory-mapped when read, so loading it costs a
+ * checksum pass and a decode. Missing, truncated or corrupt files are simply ignored.
+ */
+public class InventorySnapshot {
+    private static final String TAG = "IABUtil/InventorySnapshot";
+
+    static final String FILE_NAME = "iab_inventory.snapshot";
+
+    static final int MAGIC = 0x49414253; // "IABS"
+    static final int FORMAT_VERSION = 1;
+    // magic, version, payload length, CRC32
+    static final int HEADER_LENGTH = 4 + 4 + 4 + 8;
+
+    private final File mFile;
+
+    // The snapshot, once loaded or saved; mLoaded tells apart "not read yet" and "none".
+    private Inventory mInventory;
+    private boolean mLoaded;
+
+    public InventorySnapshot(Context ctx) {
+        this(new File(ctx.getFilesDir(), FILE_NAME));
+    }
+
+    InventorySnapshot(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Returns the saved inventory, reading it from disk on the first call.
+     *
+     * @return the inventory from the last save, or null if there is none usable
+     */
+    public synchronized Inventory get() {
+        if (!mLoaded) {
+            mInventory = load();
+            mLoaded = true;
+        }
+        return mInventory;
+    }
+
+    /**
+     * Same as {@link #get()}, with the details kept in store added, for a snapshot saved
+     * without its SKU details.
+     *
+     * @return a new inventory, or null if there is no usable snapshot
+     */
+    public Inventory get(SkuDetailsStore store) {
+        Inventory inv = get();
+        if (inv == null || store == null) return inv;
+        Inventory merged = inv.copy();
+        merged.addAllSkuDetails(store.getAll());
+        return merged;
+    }
+
+    /**
+     * Replaces the snapshot with the given inventory. Failures are logged and leave the
+     * previous file (if any) in place.
+     */
+    public void save(Inventory inv) {
+        save(inv, true);
+    }
+
+    /**
+     * Same as {@link #save(Inventory)}, but leaves out the SKU details unless
+     * includeSkuDetails is set, e.g. because a {@link SkuDetailsStore} keeps them.
+     */
+    public void save(Inventory inv, boolean includeSkuDetails) {
+        byte[] payload = includeSkuDetails ? InventoryCodec.encode(inv) : InventoryCodec.encodePurchases(inv);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putInt(payload.length);
+        header.putLong(crc.getValue());
+
+        // Write a temporary file and rename it over the old one, so readers never see half a file.
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(header.array());
+            out.write(payload);
+            out.getFD().sync();
+            out.close();
+            out = null;
+            synchronized (this) {
+                if (!tmp.renameTo(mFile)) throw new IOException("Can't rename " + tmp + ".");
+                // Without its details, inv isn't what the file holds; read the file back if asked.
+                mInventory = includeSkuDetails ? inv : null;
+                mLoaded = includeSkuDetails;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Saving inventory snapshot failed: " + e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /** Deletes the snapshot, e.g. when the user signs out. */
+    public synchronized void clear() {
+        mFile.delete();
+        mInventory = null;
+        mLoaded = true;
+    }
+
+    private Inventory load() {
+        if (!mFile.isFile()) return null;
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "r");
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) throw new IOException("Bad size " + size + ".");
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            if (map.getInt() != MAGIC) throw new IOException("Bad magic number.");
+            int version = map.getInt();
+            if (version != FORMAT_VERSION) throw new IOException("Unsupported version " + version + ".");
+            int length = map.getInt();
+            long checksum = map.getLong();
+            if (length != size - HEADER_LENGTH) throw new IOException("Bad payload length " + length + ".");
+            ByteBuffer payload = map.slice();
+            if (checksum(payload.duplicate()) != checksum) throw new IOException("Checksum mismatch.");
+            return InventoryCodec.decodeInventory(payload);
+        } catch (IOException e) {
+            Log.e(TAG, "Ignoring inventory snapshot: " + e);
+            mFile.delete();
+            return null;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static long checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        while (buffer.hasRemaining()) {
+            int n = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return crc.getValue();
+    }
+}
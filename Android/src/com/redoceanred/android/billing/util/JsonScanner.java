@@ -0,0 +1,299 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+/**
+ * Single-pass extractor for the top-level fields of a flat JSON object, such as the
+ * purchase data and SKU details returned by the billing service. It pulls the
+ * requested values straight out of the string without building a JSONObject.
+ *
+ * The scanner only handles the common, strictly valid shape: a JSON object whose
+ * requested fields hold strings or plain integers. For anything else (other value
+ * types, lenient syntax that org.json tolerates, malformed text) it reports failure
+ * and the caller falls back to {@link org.json.JSONObject}, which stays the
+ * reference for what the result should be.
+ */
+final class JsonScanner {
+    /** The field doesn't appear in the object. */
+    static final byte ABSENT = 0;
+    /** The field holds a string; its value is the unescaped string. */
+    static final byte STRING = 1;
+    /** The field holds an integer; its value is the literal, e.g. "1345678901234". */
+    static final byte NUMBER = 2;
+
+    // Longest integer literal we accept; anything longer might not fit in a long.
+    private static final int MAX_NUMBER_DIGITS = 18;
+
+    private final String mJson;
+    private final int mLength;
+    private int mPos;
+    // Whether the string last stepped over by skipString() contained escapes.
+    private boolean mEscaped;
+
+    private JsonScanner(String json) {
+        mJson = json;
+        mLength = json.length();
+    }
+
+    /**
+     * Scans <var>json</var> and stores the value and kind of each field in
+     * <var>names</var> at the same index of <var>values</var> and <var>kinds</var>.
+     * If a field appears twice, the last one wins, as with JSONObject.
+     *
+     * @return false if the text can't be handled here and must be parsed with JSONObject
+     */
+    static boolean scan(String json, String[] names, String[] values, byte[] kinds) {
+        for (int i = 0; i < names.length; i++) {
+            values[i] = null;
+            kinds[i] = ABSENT;
+        }
+        if (json == null) return false;
+        try {
+            return new JsonScanner(json).scanObject(names, values, kinds);
+        }
+        catch (IndexOutOfBoundsException e) {
+            // Ran off the end of a truncated document.
+            return false;
+        }
+    }
+
+    private boolean scanObject(String[] names, String[] values, byte[] kinds) {
+        skipWhitespace();
+        if (next() != '{') return false;
+        skipWhitespace();
+        if (peek() == '}') {
+            mPos++;
+            return atEnd();
+        }
+        while (true) {
+            skipWhitespace();
+            if (next() != '"') return false;
+            int nameStart = mPos;
+            if (!skipString()) return false;
+            int field = fieldIndex(names, nameStart, mPos - 1);
+            skipWhitespace();
+            if (next() != ':') return false;
+            skipWhitespace();
+
+            if (field < 0) {
+                if (!skipValue(0)) return false;
+            }
+            else {
+                char c = peek();
+                if (c == '"') {
+                    int start = ++mPos;
+                    if (!skipString()) return false;
+                    values[field] = stringValue(start, mPos - 1);
+                    kinds[field] = STRING;
+                }
+                else if (c == '-' || (c >= '0' && c <= '9')) {
+                    String value = readInteger();
+                    if (value == null) return false;
+                    values[field] = value;
+                    kinds[field] = NUMBER;
+                }
+                else {
+                    // null, booleans, objects, arrays: leave those to JSONObject.
+                    return false;
+                }
+            }
+
+            skipWhitespace();
+            char c = next();
+            if (c == '}') return atEnd();
+            if (c != ',') return false;
+        }
+    }
+
+    // Looks up the key between start and end without copying it unless it has escapes.
+    private int fieldIndex(String[] names, int start, int end) {
+        if (mEscaped) {
+            String name = unescape(start, end);
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) return i;
+            }
+            return -1;
+        }
+        int length = end - start;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].length() == length && mJson.regionMatches(start, names[i], 0, length)) return i;
+        }
+        return -1;
+    }
+
+    // Steps over a string whose opening quote was consumed, leaving mPos after the
+    // closing quote. Returns false on bad input; sets mEscaped if it has escapes.
+    private boolean skipString() {
+        mEscaped = false;
+        while (true) {
+            char c = mJson.charAt(mPos++);
+            if (c == '"') return true;
+            if (c < 0x20) return false;
+            if (c != '\\') continue;
+            mEscaped = true;
+            c = mJson.charAt(mPos++);
+            switch (c) {
+                case '"': case '\\': case '/': case 'b': case 'f': case 'n': case 'r': case 't':
+                    break;
+                case 'u':
+                    for (int i = 0; i < 4; i++) {
+                        if (Character.digit(mJson.charAt(mPos++), 16) < 0) return false;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    // Returns the string between start and end, just checked by skipString().
+    private String stringValue(int start, int end) {
+        return mEscaped ? unescape(start, end) : mJson.substring(start, end);
+    }
+
+    private String unescape(int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+        int i = start;
+        while (i < end) {
+            char c = mJson.charAt(i++);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            c = mJson.charAt(i++);
+            switch (c) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    sb.append((char) Integer.parseInt(mJson.substring(i, i + 4), 16));
+                    i += 4;
+                    break;
+                default:
+                    sb.append(c);
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    // Reads an integer literal whose text is the same as its canonical form, so that
+    // it reads back the same through optString() and optLong(). Returns null otherwise.
+    private String readInteger() {
+        int start = mPos;
+        if (peek() == '-') mPos++;
+        int digitsStart = mPos;
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos);
+            if (c < '0' || c > '9') break;
+            mPos++;
+        }
+        int digits = mPos - digitsStart;
+        if (digits == 0 || digits > MAX_NUMBER_DIGITS) return null;
+        // Leading zeros, "-0", fractions and exponents all go to JSONObject.
+        if (mJson.charAt(digitsStart) == '0' && (digits > 1 || digitsStart != start)) return null;
+        if (mPos < mLength) {
+            char c = mJson.charAt(mPos);
+            if (c == '.' || c == 'e' || c == 'E') return null;
+        }
+        return mJson.substring(start, mPos);
+    }
+
+    // Skips over any JSON value. Returns false if it isn't one.
+    private boolean skipValue(int depth) {
+        char c = peek();
+        switch (c) {
+            case '"':
+                mPos++;
+                return skipString();
+            case '{':
+            case '[': {
+                if (depth > 32) return false;
+                char close = c == '{' ? '}' : ']';
+                mPos++;
+                skipWhitespace();
+                if (peek() == close) {
+                    mPos++;
+                    return true;
+                }
+                while (true) {
+                    skipWhitespace();
+                    if (c == '{') {
+                        if (next() != '"' || !skipString()) return false;
+                        skipWhitespace();
+                        if (next() != ':') return false;
+                        skipWhitespace();
+                    }
+                    if (!skipValue(depth + 1)) return false;
+                    skipWhitespace();
+                    char d = next();
+                    if (d == close) return true;
+                    if (d != ',') return false;
+                }
+            }
+            case 't':
+                return skipWord("true");
+            case 'f':
+                return skipWord("false");
+            case 'n':
+                return skipWord("null");
+            default: {
+                int start = mPos;
+                while (mPos < mLength) {
+                    char d = mJson.charAt(mPos);
+                    if ((d >= '0' && d <= '9') || d == '-' || d == '+' || d == '.'
+                            || d == 'e' || d == 'E') {
+                        mPos++;
+                    }
+                    else {
+                        break;
+                    }
+                }
+                return mPos > start;
+            }
+        }
+    }
+
+    private boolean skipWord(String word) {
+        if (!mJson.startsWith(word, mPos)) return false;
+        mPos += word.length();
+        return true;
+    }
+
+    private void skipWhitespace() {
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') break;
+            mPos++;
+        }
+    }
+
+    private boolean atEnd() {
+        skipWhitespace();
+        return mPos == mLength;
+    }
+
+    private char peek() {
+        return mJson.charAt(mPos);
+    }
+
+    private char next() {
+        return mJson.charAt(mPos++);
+    }
+}
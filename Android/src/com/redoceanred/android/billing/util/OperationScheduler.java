@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Decides when the asynchronous operations of an {@link IabHelper} may run. Operations
+ * that don't conflict (see {@link IabOperation#conflictsWith}) run side by side; one that
+ * conflicts with a running or earlier queued operation waits, and queued operations
+ * start in submission order as the conflicts clear.
+ */
+final class OperationScheduler {
+    private static final String TAG = "IABUtil/OperationScheduler";
+
+    private final List<IabOperation> mRunning = new ArrayList<IabOperation>();
+    private final LinkedList<IabOperation> mWaiting = new LinkedList<IabOperation>();
+
+    /**
+     * Creates an operation using the given resources, in the given modes.
+     */
+    IabOperation newOperation(String name, String[] resources, int[] modes) {
+        return new IabOperation(this, name, resources, modes);
+    }
+
+    /**
+     * Starts op right away if nothing stands in its way. Otherwise queues it, to be started
+     * later through its deferred start action.
+     *
+     * @return true if op is now running and the caller must start it
+     */
+    synchronized boolean tryStart(IabOperation op) {
+        if (canStart(op, mWaiting.size())) {
+            op.mState = IabOperation.RUNNING;
+            mRunning.add(op);
+            return true;
+        }
+        mWaiting.addLast(op);
+        return false;
+    }
+
+    /** Marks op as finished and starts whatever was waiting for it. */
+    void finish(IabOperation op) {
+        List<IabOperation> started = new ArrayList<IabOperation>();
+        synchronized (this) {
+            if (!mRunning.remove(op)) return;
+            op.mState = IabOperation.DONE;
+            int position = 0;
+            Iterator<IabOperation> it = mWaiting.iterator();
+            while (it.hasNext()) {
+                IabOperation next = it.next();
+                if (canStart(next, position)) {
+                    it.remove();
+                    next.mState = IabOperation.RUNNING;
+                    mRunning.add(next);
+                    started.add(next);
+                }
+                else {
+                    position++;
+                }
+            }
+        }
+        for (IabOperation next : started) {
+            try {
+                next.mDeferredStart.run();
+            }
+            catch (RuntimeException e) {
+                // E.g. the executor's queue is full. The operation is over, so its listener
+                // must hear about it.
+                Log.e(TAG, "Couldn't start " + next + ": " + e);
+                finish(next);
+                if (next.mOnStartFailed != null) {
+                    next.mOnStartFailed.onStartFailed(new IabResult(IabHelper.IABHELPER_UNKNOWN_ERROR,
+                            "Couldn't start " + next.mName + ": " + e));
+                }
+            }
+        }
+    }
+
+    /** Removes op from the queue if it hasn't started. */
+    synchronized boolean cancel(IabOperation op) {
+        if (!mWaiting.remove(op)) return false;
+        op.mState = IabOperation.CANCELLED;
+        return true;
+    }
+
+    /**
+     * Drops every waiting operation and tells its listener that it failed with result.
+     * Running ones finish normally.
+     */
+    void cancelWaiting(IabResult result) {
+        List<IabOperation> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<IabOperation>(mWaiting);
+            mWaiting.clear();
+            for (IabOperation op : dropped) op.mState = IabOperation.DONE;
+        }
+        for (IabOperation op : dropped) {
+            if (op.mOnStartFailed != null) op.mOnStartFailed.onStartFailed(result);
+        }
+    }
+
+    synchronized int getRunningCount() {
+        return mRunning.size();
+    }
+
+    synchronized int getWaitingCount() {
+        return mWaiting.size();
+    }
+
+    // Whether op conflicts with nothing running and none of the first `ahead` waiting operations.
+    private boolean canStart(IabOperation op, int ahead) {
+        for (IabOperation running : mRunning) {
+            if (op.conflictsWith(running)) return false;
+        }
+        int i = 0;
+        for (IabOperation waiting : mWaiting) {
+            if (i++ >= ahead) break;
+            if (op.conflictsWith(waiting)) return false;
+        }
+        return true;
+    }
+}
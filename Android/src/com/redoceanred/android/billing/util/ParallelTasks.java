@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a fixed number of indexed tasks with bounded parallelism. The calling thread
+ * takes part in the work and helpers pulled from the executor only pick up tasks
+ * nobody has claimed yet, so this never deadlocks even when called from a thread of
+ * the same (possibly saturated) executor.
+ */
+final class ParallelTasks {
+
+    /** A unit of work identified by its index. */
+    interface Task {
+        void run(int index);
+    }
+
+    private ParallelTasks() {
+    }
+
+    /**
+     * Runs task.run(0) .. task.run(count - 1) and returns when all of them are done.
+     * If any task throws, the first exception is rethrown on the calling thread after
+     * the remaining tasks have finished.
+     *
+     * @param executor executor for helper threads; if null everything runs on the caller
+     * @param parallelism maximum number of threads working at once, caller included
+     * @param count number of tasks
+     * @param task the work to run
+     */
+    static void run(Executor executor, int parallelism, final int count, final Task task) {
+        if (count <= 0) return;
+        if (executor == null || parallelism <= 1 || count == 1) {
+            for (int i = 0; i < count; i++) task.run(i);
+            return;
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        final int[] done = new int[1];
+        final RuntimeException[] failure = new RuntimeException[1];
+
+        final Runnable worker = new Runnable() {
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < count) {
+                    try {
+                        task.run(i);
+                    }
+                    catch (RuntimeException e) {
+                        synchronized (done) {
+                            if (failure[0] == null) failure[0] = e;
+                        }
+                    }
+                    finally {
+                        synchronized (done) {
+                            if (++done[0] == count) done.notifyAll();
+                        }
+                    }
+                }
+            }
+        };
+
+        int helpers = Math.min(parallelism, count) - 1;
+        for (int h = 0; h < helpers; h++) {
+            try {
+                executor.execute(worker);
+            }
+            catch (RejectedExecutionException e) {
+                // The caller will pick up the slack.
+                break;
+            }
+        }
+        worker.run();
+
+        // Every task has been claimed; wait for the ones still running on helpers.
+        boolean interrupted = false;
+        synchronized (done) {
+            while (done[0] < count) {
+                try {
+                    done.wait();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            if (failure[0] != null) throw failure[0];
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable hash map with cheap updates: {@link #plus} and {@link #minus} return a new
+ * map that shares all untouched structure with this one. It is a hash array mapped
+ * trie (HAMT): 32-way nodes indexed by 5 bits of the key's hash at each level, with a
+ * bitmap so that nodes only store the slots in use. An update copies the O(log32 n)
+ * nodes on the path to the key, so keeping many versions of a large map costs memory
+ * proportional to what changed between them.
+ *
+ * The {@link java.util.Map} mutators throw UnsupportedOperationException. Null keys
+ * are not allowed.
+ */
+final class PersistentHashMap<K, V> extends AbstractMap<K, V> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    // Returned by Node.find() when the key is absent (null is a valid value).
+    private static final Object NOT_FOUND = new Object();
+
+    @SuppressWarnings("rawtypes")
+    private static final PersistentHashMap EMPTY = new PersistentHashMap(null, 0);
+
+    // null when empty
+    private final Node mRoot;
+    private final int mSize;
+
+    private Set<Entry<K, V>> mEntrySet;
+
+    private PersistentHashMap(Node root, int size) {
+        mRoot = root;
+        mSize = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentHashMap<K, V> empty() {
+        return EMPTY;
+    }
+
+    private static int hash(Object key) {
+        // Spread the bits a little: String hashes of short keys are weak in the low bits.
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (mRoot == null || key == null) return null;
+        Object value = mRoot.find(0, hash(key), key);
+        return value == NOT_FOUND ? null : (V) value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return mRoot != null && key != null && mRoot.find(0, hash(key), key) != NOT_FOUND;
+    }
+
+    /**
+     * Returns a map with key mapped to value. Returns this map itself if key is already
+     * mapped to that very value (same reference), so re-adding unchanged entries keeps
+     * the structure shared.
+     */
+    PersistentHashMap<K, V> plus(K key, V value) {
+        if (key == null) throw new NullPointerException("key");
+        boolean[] added = new boolean[1];
+        Node root = mRoot != null ? mRoot : BitmapNode.EMPTY;
+        Node newRoot = root.plus(0, hash(key), key, value, added);
+        if (newRoot == mRoot) return this;
+        return new PersistentHashMap<K, V>(newRoot, added[0] ? mSize + 1 : mSize);
+    }
+
+    /** Returns a map without key, or this map itself if key isn't in it. */
+    PersistentHashMap<K, V> minus(Object key) {
+        if (mRoot == null || key == null) return this;
+        Node newRoot = mRoot.minus(0, hash(key), key);
+        if (newRoot == mRoot) return this;
+        return new PersistentHashMap<K, V>(newRoot, mSize - 1);
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        if (mEntrySet == null) {
+            mEntrySet = new AbstractSet<Entry<K, V>>() {
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    return new EntryIterator<K, V>(mRoot);
+                }
+
+                @Override
+                public int size() {
+                    return mSize;
+                }
+            };
+        }
+        return mEntrySet;
+    }
+
+    private abstract static class Node {
+        abstract Object find(int shift, int hash, Object key);
+        abstract Node plus(int shift, int hash, Object key, Object value, boolean[] added);
+        // Returns null if the node ends up empty.
+        abstract Node minus(int shift, int hash, Object key);
+        // Key/value pairs, as in BitmapNode.
+        abstract Object[] array();
+    }
+
+    /**
+     * Up to 32 slots, one bit per slot in mBitmap. mArray holds a pair per used slot:
+     * (key, value) for an entry, or (null, child node) for a subtree.
+     */
+    private static final class BitmapNode extends Node {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int mBitmap;
+        final Object[] mArray;
+
+        BitmapNode(int bitmap, Object[] array) {
+            mBitmap = bitmap;
+            mArray = array;
+        }
+
+        private int index(int bit) {
+            return 2 * Integer.bitCount(mBitmap & (bit - 1));
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((mBitmap & bit) == 0) return NOT_FOUND;
+            int idx = index(bit);
+            Object k = mArray[idx];
+            Object v = mArray[idx + 1];
+            if (k == null) return ((Node) v).find(shift + BITS, hash, key);
+            return key.equals(k) ? v : NOT_FOUND;
+        }
+
+        @Override
+        Node plus(int shift, int hash, Object key, Object value, boolean[] added) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int idx = index(bit);
+            if ((mBitmap & bit) == 0) {
+                Object[] array = new Object[mArray.length + 2];
+                System.arraycopy(mArray, 0, array, 0, idx);
+                array[idx] = key;
+                array[idx + 1] = value;
+                System.arraycopy(mArray, idx, array, idx + 2, mArray.length - idx);
+                added[0] = true;
+                return new BitmapNode(mBitmap | bit, array);
+            }
+
+            Object k = mArray[idx];
+            Object v = mArray[idx + 1];
+            if (k == null) {
+                Node child = ((Node) v).plus(shift + BITS, hash, key, value, added);
+                return child == v ? this : with(idx + 1, child);
+            }
+            if (key.equals(k)) {
+                return value == v ? this : with(idx + 1, value);
+            }
+            // Two keys in one slot: push both down a level.
+            added[0] = true;
+            Node child = pair(shift + BITS, hash(k), k, v, hash, key, value);
+            Object[] array = mArray.clone();
+            array[idx] = null;
+            array[idx + 1] = child;
+            return new BitmapNode(mBitmap, array);
+        }
+
+        @Override
+        Node minus(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((mBitmap & bit) == 0) return this;
+            int idx = index(bit);
+            Object k = mArray[idx];
+            Object v = mArray[idx + 1];
+            if (k == null) {
+                Node child = ((Node) v).minus(shift + BITS, hash, key);
+                if (child == v) return this;
+                if (child != null) return with(idx + 1, child);
+            }
+            else if (!key.equals(k)) {
+                return this;
+            }
+            // Drop the slot.
+            if (mBitmap == bit) return null;
+            Object[] array = new Object[mArray.length - 2];
+            System.arraycopy(mArray, 0, array, 0, idx);
+            System.arraycopy(mArray, idx + 2, array, idx, mArray.length - idx - 2);
+            return new BitmapNode(mBitmap & ~bit, array);
+        }
+
+        @Override
+        Object[] array() {
+            return mArray;
+        }
+
+        private BitmapNode with(int i, Object o) {
+            Object[] array = mArray.clone();
+            array[i] = o;
+            return new BitmapNode(mBitmap, array);
+        }
+
+        private static Node pair(int shift, int hash1, Object key1, Object value1,
+                                 int hash2, Object key2, Object value2) {
+            if (hash1 == hash2) {
+                return new CollisionNode(hash1, new Object[] { key1, value1, key2, value2 });
+            }
+            boolean[] ignored = new boolean[1];
+            return EMPTY.plus(shift, hash1, key1, value1, ignored)
+                    .plus(shift, hash2, key2, value2, ignored);
+        }
+    }
+
+    /** Entries whose keys have the very same hash. */
+    private static final class CollisionNode extends Node {
+        final int mHash;
+        final Object[] mArray;
+
+        CollisionNode(int hash, Object[] array) {
+            mHash = hash;
+            mArray = array;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < mArray.length; i += 2) {
+                if (key.equals(mArray[i])) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            if (hash != mHash) return NOT_FOUND;
+            int i = indexOf(key);
+            return i < 0 ? NOT_FOUND : mArray[i + 1];
+        }
+
+        @Override
+        Node plus(int shift, int hash, Object key, Object value, boolean[] added) {
+            if (hash != mHash) {
+                // Different hash in the same slot: put this node under a bitmap node.
+                Node parent = new BitmapNode(1 << ((mHash >>> shift) & MASK), new Object[] { null, this });
+                return parent.plus(shift, hash, key, value, added);
+            }
+            int i = indexOf(key);
+            if (i >= 0) {
+                if (mArray[i + 1] == value) return this;
+                Object[] array = mArray.clone();
+                array[i + 1] = value;
+                return new CollisionNode(mHash, array);
+            }
+            Object[] array = new Object[mArray.length + 2];
+            System.arraycopy(mArray, 0, array, 0, mArray.length);
+            array[mArray.length] = key;
+            array[mArray.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(mHash, array);
+        }
+
+        @Override
+        Node minus(int shift, int hash, Object key) {
+            if (hash != mHash) return this;
+            int i = indexOf(key);
+            if (i < 0) return this;
+            if (mArray.length == 2) return null;
+            Object[] array = new Object[mArray.length - 2];
+            System.arraycopy(mArray, 0, array, 0, i);
+            System.arraycopy(mArray, i + 2, array, i, mArray.length - i - 2);
+            return new CollisionNode(mHash, array);
+        }
+
+        @Override
+        Object[] array() {
+            return mArray;
+        }
+    }
+
+    /** Depth-first walk over the trie, holding one array and position per level. */
+    private static final class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+        // Deep enough for 32-bit hashes (7 levels) plus a collision node.
+        private final Object[][] mArrays = new Object[8][];
+        private final int[] mPositions = new int[8];
+        private int mDepth = -1;
+        private Entry<K, V> mNext;
+
+        EntryIterator(Node root) {
+            if (root != null) {
+                mArrays[0] = root.array();
+                mDepth = 0;
+            }
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            mNext = null;
+            while (mDepth >= 0) {
+                Object[] array = mArrays[mDepth];
+                int pos = mPositions[mDepth];
+                if (pos >= array.length) {
+                    mArrays[mDepth] = null;
+                    mPositions[mDepth] = 0;
+                    mDepth--;
+                    continue;
+                }
+                mPositions[mDepth] = pos + 2;
+                Object k = array[pos];
+                Object v = array[pos + 1];
+                if (k == null) {
+                    mDepth++;
+                    mArrays[mDepth] = ((Node) v).array();
+                    mPositions[mDepth] = 0;
+                }
+                else {
+                    mNext = new SimpleImmutableEntry<K, V>((K) k, (V) v);
+                    return;
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return mNext != null;
+        }
+
+        public Entry<K, V> next() {
+            if (mNext == null) throw new NoSuchElementException();
+            Entry<K, V> next = mNext;
+            advance();
+            return next;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
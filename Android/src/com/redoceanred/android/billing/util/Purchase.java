@@ -33,9 +33,108 @@ public class Purchase {
     String mOriginalJson;
     String mSignature;
 
+    // False while a lazily built purchase still has its fields (other than the SKU) to decode.
+    private volatile boolean mDecoded;
+
+    // Fields pulled out by JsonScanner, in this order.
+    private static final String[] FIELDS = {
+        "orderId", "packageName", "productId", "purchaseTime", "purchaseState",
+        "developerPayload", "token", "purchaseToken"
+    };
+    private static final int ORDER_ID = 0, PACKAGE_NAME = 1, PRODUCT_ID = 2, PURCHASE_TIME = 3,
+            PURCHASE_STATE = 4, DEVELOPER_PAYLOAD = 5, TOKEN = 6, PURCHASE_TOKEN = 7;
+
+    private static final String[] SKU_FIELD = { "productId" };
+
     public Purchase(String itemType, String jsonPurchaseInfo, String signature) throws JSONException {
+        this(itemType, jsonPurchaseInfo, signature, false);
+    }
+
+    /**
+     * @param lazy if true, only the SKU is read now and the other fields are decoded
+     *     the first time one of them is asked for
+     */
+    Purchase(String itemType, String jsonPurchaseInfo, String signature, boolean lazy) throws JSONException {
         mItemType = itemType;
         mOriginalJson = jsonPurchaseInfo;
+        mSignature = signature;
+        // The scan also checks the whole document, so a later decode can't fail on bad JSON.
+        if (lazy && scanSku()) return;
+        if (!scanFields()) parseFields();
+        mDecoded = true;
+    }
+
+    /** Rebuilds a purchase from fields that were already decoded, e.g. by {@link InventoryCodec}. */
+    Purchase(String itemType, String orderId, String packageName, String sku, long purchaseTime,
+             int purchaseState, String developerPayload, String token, String originalJson,
+             String signature) {
+        mItemType = itemType;
+        mOrderId = orderId;
+        mPackageName = packageName;
+        mSku = sku;
+        mPurchaseTime = purchaseTime;
+        mPurchaseState = purchaseState;
+        mDeveloperPayload = developerPayload;
+        mToken = token;
+        mOriginalJson = originalJson;
+        mSignature = signature;
+        mDecoded = true;
+    }
+
+    private boolean scanSku() {
+        String[] values = new String[1];
+        byte[] kinds = new byte[1];
+        if (!JsonScanner.scan(mOriginalJson, SKU_FIELD, values, kinds)) return false;
+        mSku = optString(values[0]);
+        return true;
+    }
+
+    private void decode() {
+        if (mDecoded) return;
+        synchronized (this) {
+            if (mDecoded) return;
+            try {
+                if (!scanFields()) parseFields();
+            }
+            catch (JSONException e) {
+                // Can't happen: the JSON was checked when this purchase was built.
+            }
+            mDecoded = true;
+        }
+    }
+
+    // Reads the fields with JsonScanner. Returns false if the JSON has to go through JSONObject.
+    private boolean scanFields() {
+        String[] values = new String[FIELDS.length];
+        byte[] kinds = new byte[FIELDS.length];
+        if (!JsonScanner.scan(mOriginalJson, FIELDS, values, kinds)) return false;
+
+        // Numbers must be plain integers; a string or out-of-range value goes the slow way.
+        long purchaseTime = 0;
+        if (kinds[PURCHASE_TIME] == JsonScanner.STRING) return false;
+        if (kinds[PURCHASE_TIME] == JsonScanner.NUMBER) purchaseTime = Long.parseLong(values[PURCHASE_TIME]);
+        long purchaseState = 0;
+        if (kinds[PURCHASE_STATE] == JsonScanner.STRING) return false;
+        if (kinds[PURCHASE_STATE] == JsonScanner.NUMBER) {
+            purchaseState = Long.parseLong(values[PURCHASE_STATE]);
+            if (purchaseState != (int) purchaseState) return false;
+        }
+
+        mOrderId = optString(values[ORDER_ID]);
+        mPackageName = optString(values[PACKAGE_NAME]);
+        mSku = optString(values[PRODUCT_ID]);
+        mPurchaseTime = purchaseTime;
+        mPurchaseState = (int) purchaseState;
+        mDeveloperPayload = optString(values[DEVELOPER_PAYLOAD]);
+        mToken = values[TOKEN] != null ? values[TOKEN] : optString(values[PURCHASE_TOKEN]);
+        return true;
+    }
+
+    private static String optString(String value) {
+        return value != null ? value : "";
+    }
+
+    private void parseFields() throws JSONException {
         JSONObject o = new JSONObject(mOriginalJson);
         mOrderId = o.optString("orderId");
         mPackageName = o.optString("packageName");
@@ -44,17 +143,16 @@ public class Purchase {
         mPurchaseState = o.optInt("purchaseState");
         mDeveloperPayload = o.optString("developerPayload");
         mToken = o.optString("token", o.optString("purchaseToken"));
-        mSignature = signature;
     }
 
     public String getItemType() { return mItemType; }
-    public String getOrderId() { return mOrderId; }
-    public String getPackageName() { return mPackageName; }
+    public String getOrderId() { decode(); return mOrderId; }
+    public String getPackageName() { decode(); return mPackageName; }
     public String getSku() { return mSku; }
-    public long getPurchaseTime() { return mPurchaseTime; }
-    public int getPurchaseState() { return mPurchaseState; }
-    public String getDeveloperPayload() { return mDeveloperPayload; }
-    public String getToken() { return mToken; }
+    public long getPurchaseTime() { decode(); return mPurchaseTime; }
+    public int getPurchaseState() { decode(); return mPurchaseState; }
+    public String getDeveloperPayload() { decode(); return mDeveloperPayload; }
+    public String getToken() { decode(); return mToken; }
     public String getOriginalJson() { return mOriginalJson; }
     public String getSignature() { return mSignature; }
 
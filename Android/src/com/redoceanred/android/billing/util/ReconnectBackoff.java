@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import java.util.Random;
+
+/**
+ * Delays between attempts to rebind to the billing service. Each attempt waits twice as
+ * long as the previous one, up to a maximum, and the actual delay is picked at random in
+ * the upper half of that window so that many apps reconnecting after a Play Store
+ * restart don't all hit the service at the same moment.
+ */
+final class ReconnectBackoff {
+    private final Random mRandom = new Random();
+
+    private long mInitialDelay;
+    private long mMaxDelay;
+    private int mAttempts;
+
+    ReconnectBackoff(long initialDelayMillis, long maxDelayMillis) {
+        set(initialDelayMillis, maxDelayMillis);
+    }
+
+    synchronized void set(long initialDelayMillis, long maxDelayMillis) {
+        mInitialDelay = Math.max(1, initialDelayMillis);
+        mMaxDelay = Math.max(mInitialDelay, maxDelayMillis);
+    }
+
+    /** Returns the delay before the next attempt, in milliseconds, and counts the attempt. */
+    synchronized long nextDelay() {
+        long window = mInitialDelay;
+        for (int i = 0; i < mAttempts && window < mMaxDelay; i++) window <<= 1;
+        window = Math.min(window, mMaxDelay);
+        mAttempts++;
+        long half = window / 2;
+        return half + (long) (mRandom.nextDouble() * (window - half));
+    }
+
+    /** Returns how many attempts were made since the last reset. */
+    synchronized int getAttempts() {
+        return mAttempts;
+    }
+
+    /** Starts over from the initial delay, once the connection is back. */
+    synchronized void reset() {
+        mAttempts = 0;
+    }
+}
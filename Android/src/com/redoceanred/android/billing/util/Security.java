@@ -18,6 +18,8 @@ package com.redoceanred.android.billing.util;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
@@ -42,6 +44,100 @@ public class Security {
     private static final String KEY_FACTORY_ALGORITHM = "RSA";
     private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
 
+    // Signed data is always hashed as UTF-8, whatever the device locale.
+    static final String CHARSET = "UTF-8";
+
+    // Per-thread buffers, so that verifying a receipt doesn't allocate.
+    private static final ThreadLocal<Scratch> sScratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /**
+     * Reusable buffers holding one receipt's signed data, its Base64 signature
+     * and the decoded signature. They only ever grow.
+     */
+    static final class Scratch {
+        byte[] mData = new byte[1024];
+        byte[] mSignature = new byte[512];
+        byte[] mDecoded = new byte[384];
+
+        /** Encodes s as UTF-8 into mData and returns the number of bytes written. */
+        int putData(String s) {
+            int len = s.length();
+            if (mData.length < len * 3) mData = new byte[len * 3];
+            byte[] out = mData;
+            int n = 0;
+            for (int i = 0; i < len; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    out[n++] = (byte) c;
+                } else if (c < 0x800) {
+                    out[n++] = (byte) (0xc0 | (c >> 6));
+                    out[n++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < len
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    out[n++] = (byte) (0xf0 | (cp >> 18));
+                    out[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    out[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    out[n++] = (byte) (0x80 | (cp & 0x3f));
+                } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    // Unpaired surrogate; String.getBytes("UTF-8") writes '?' as well.
+                    out[n++] = (byte) '?';
+                } else {
+                    out[n++] = (byte) (0xe0 | (c >> 12));
+                    out[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    out[n++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            return n;
+        }
+
+        /**
+         * Copies a Base64 signature into mSignature and returns its length. Base64 is
+         * plain ASCII; anything else is replaced by a byte the decoder rejects.
+         */
+        int putSignature(String s) {
+            int len = s.length();
+            if (mSignature.length < len) mSignature = new byte[len];
+            for (int i = 0; i < len; i++) {
+                char c = s.charAt(i);
+                mSignature[i] = c < 0x80 ? (byte) c : (byte) 0x7f;
+            }
+            return len;
+        }
+
+        /** Returns mDecoded, grown to hold the decoding of base64Len characters. */
+        byte[] decodeBuffer(int base64Len) {
+            int needed = base64Len * 3 / 4;
+            if (mDecoded.length < needed) mDecoded = new byte[needed];
+            return mDecoded;
+        }
+
+        /** Copies the remaining bytes of b into mData, leaving b's position alone. */
+        int putData(ByteBuffer b) {
+            int len = b.remaining();
+            if (mData.length < len) mData = new byte[len];
+            for (int i = 0; i < len; i++) mData[i] = b.get(b.position() + i);
+            return len;
+        }
+
+        /** Copies the remaining bytes of b into mSignature, leaving b's position alone. */
+        int putSignature(ByteBuffer b) {
+            int len = b.remaining();
+            if (mSignature.length < len) mSignature = new byte[len];
+            for (int i = 0; i < len; i++) mSignature[i] = b.get(b.position() + i);
+            return len;
+        }
+    }
+
+    static Scratch getScratch() {
+        return sScratch.get();
+    }
+
     /**
      * Verifies that the data was signed with the given signature, and returns
      * the verified purchase. The data is in JSON format and signed
@@ -57,10 +153,55 @@ public class Security {
             return false;
         }
 
-        boolean verified = false;
         if (!TextUtils.isEmpty(signature)) {
-            PublicKey key = Security.generatePublicKey(base64PublicKey);
-            verified = Security.verify(key, signedData, signature);
+            Scratch scratch = sScratch.get();
+            int dataLen = scratch.putData(signedData);
+            int sigLen = scratch.putSignature(signature);
+            return verifyPurchase(base64PublicKey, scratch.mData, 0, dataLen,
+                    scratch.mSignature, 0, sigLen, scratch.decodeBuffer(sigLen));
+        }
+        return true;
+    }
+
+    /**
+     * Same as {@link #verifyPurchase(String, String, String)}, but reads the signed data
+     * (UTF-8) and the Base64 signature from byte arrays. The signature is decoded into
+     * <var>scratch</var>, which must have room for <code>sigLen * 3 / 4</code> bytes, so
+     * nothing is allocated unless the outcome has to be added to the cache.
+     *
+     * @param base64PublicKey the base64-encoded public key to use for verifying.
+     * @param signedData the signed JSON data, UTF-8 encoded
+     * @param dataOff offset of the signed data
+     * @param dataLen length of the signed data
+     * @param base64Signature the Base64-encoded signature
+     * @param sigOff offset of the signature
+     * @param sigLen length of the signature
+     * @param scratch buffer for the decoded signature
+     */
+    public static boolean verifyPurchase(String base64PublicKey, byte[] signedData, int dataOff, int dataLen,
+                                         byte[] base64Signature, int sigOff, int sigLen, byte[] scratch) {
+        if (signedData == null) {
+            Log.e(TAG, "data is null");
+            return false;
+        }
+
+        boolean verified = false;
+        if (base64Signature != null && sigLen > 0) {
+            // The decoded key and the initialized Signature are cached per key string.
+            SignatureVerifier verifier = SignatureVerifier.forKey(base64PublicKey);
+
+            // Receipts are immutable, so a previous outcome for the same inputs still holds.
+            VerificationCache.Key cacheKey = VerificationCache.probe(verifier.mKeyBytes,
+                    signedData, dataOff, dataLen, base64Signature, sigOff, sigLen);
+            Boolean cached = VerificationCache.get(cacheKey);
+            if (cached != null) {
+                verified = cached.booleanValue();
+            }
+            else {
+                verified = checkSignature(verifier, signedData, dataOff, dataLen,
+                        base64Signature, sigOff, sigLen, scratch);
+                VerificationCache.put(cacheKey, verified);
+            }
             if (!verified) {
                 Log.w(TAG, "signature does not match data.");
                 return false;
@@ -69,6 +210,96 @@ public class Security {
         return true;
     }
 
+    // Decodes the signature into scratch and checks it, without going through the cache.
+    private static boolean checkSignature(SignatureVerifier verifier, byte[] signedData, int dataOff,
+                                          int dataLen, byte[] base64Signature, int sigOff, int sigLen,
+                                          byte[] scratch) {
+        try {
+            int decodedLen = Base64.decodeInto(base64Signature, sigOff, sigLen, scratch, 0);
+            return verifier.verify(signedData, dataOff, dataLen, scratch, 0, decodedLen);
+        } catch (Base64DecoderException e) {
+            Log.e(TAG, "Base64 decoding failed.");
+        }
+        return false;
+    }
+
+    /**
+     * Returns the verification cache key for these inputs, or null if
+     * {@link #verifyPurchase(String, String, String)} resolves them without checking a
+     * signature (such inputs are never cached). The key is the calling thread's reusable
+     * probe; see {@link VerificationCache#probe}.
+     */
+    static VerificationCache.Key cacheKey(String base64PublicKey, String signedData, String signature) {
+        if (signedData == null || TextUtils.isEmpty(signature)) return null;
+        SignatureVerifier verifier = SignatureVerifier.forKey(base64PublicKey);
+        Scratch scratch = sScratch.get();
+        int dataLen = scratch.putData(signedData);
+        int sigLen = scratch.putSignature(signature);
+        return VerificationCache.probe(verifier.mKeyBytes, scratch.mData, 0, dataLen,
+                scratch.mSignature, 0, sigLen);
+    }
+
+    /**
+     * Verifies inputs that {@link #cacheKey} returned a key for and that weren't in the
+     * cache, then records the outcome under that key. cacheKey must be the caller's own
+     * copy of the key, not a thread's probe, since it is stored as is.
+     */
+    static boolean verifyUncached(String base64PublicKey, String signedData, String signature,
+                                  VerificationCache.Key cacheKey) {
+        SignatureVerifier verifier = SignatureVerifier.forKey(base64PublicKey);
+        Scratch scratch = sScratch.get();
+        int dataLen = scratch.putData(signedData);
+        int sigLen = scratch.putSignature(signature);
+        boolean verified = checkSignature(verifier, scratch.mData, 0, dataLen,
+                scratch.mSignature, 0, sigLen, scratch.decodeBuffer(sigLen));
+        VerificationCache.putOwned(cacheKey, verified);
+        if (!verified) Log.w(TAG, "signature does not match data.");
+        return verified;
+    }
+
+    /**
+     * Same as {@link #verifyPurchase(String, byte[], int, int, byte[], int, int, byte[])},
+     * reading the remaining bytes of each buffer. The buffers' positions are not changed.
+     */
+    public static boolean verifyPurchase(String base64PublicKey, ByteBuffer signedData,
+                                         ByteBuffer base64Signature, byte[] scratch) {
+        if (signedData == null) {
+            Log.e(TAG, "data is null");
+            return false;
+        }
+        if (base64Signature == null || !base64Signature.hasRemaining()) return true;
+
+        Scratch buffers = null;
+        byte[] data;
+        int dataOff, dataLen;
+        if (signedData.hasArray()) {
+            data = signedData.array();
+            dataOff = signedData.arrayOffset() + signedData.position();
+            dataLen = signedData.remaining();
+        }
+        else {
+            buffers = sScratch.get();
+            dataOff = 0;
+            dataLen = buffers.putData(signedData);
+            data = buffers.mData;
+        }
+
+        byte[] sig;
+        int sigOff, sigLen;
+        if (base64Signature.hasArray()) {
+            sig = base64Signature.array();
+            sigOff = base64Signature.arrayOffset() + base64Signature.position();
+            sigLen = base64Signature.remaining();
+        }
+        else {
+            if (buffers == null) buffers = sScratch.get();
+            sigOff = 0;
+            sigLen = buffers.putSignature(base64Signature);
+            sig = buffers.mSignature;
+        }
+        return verifyPurchase(base64PublicKey, data, dataOff, dataLen, sig, sigOff, sigLen, scratch);
+    }
+
     /**
      * Generates a PublicKey instance from a string containing the
      * Base64-encoded public key.
@@ -102,12 +333,63 @@ public class Security {
      * @return true if the data and signature match
      */
     public static boolean verify(PublicKey publicKey, String signedData, String signature) {
+        try {
+            return verify(publicKey, ByteBuffer.wrap(signedData.getBytes(CHARSET)),
+                    ByteBuffer.wrap(Base64.decode(signature)));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        } catch (Base64DecoderException e) {
+            Log.e(TAG, "Base64 decoding failed.");
+        }
+        return false;
+    }
+
+    /**
+     * Verifies that the signature from the server matches the computed
+     * signature on the data.  Returns true if the data is correctly signed.
+     *
+     * @param publicKey public key associated with the developer account
+     * @param signedData signed data from server, UTF-8 encoded
+     * @param dataOff offset of the signed data
+     * @param dataLen length of the signed data
+     * @param signature server signature, already Base64-decoded
+     * @param sigOff offset of the signature
+     * @param sigLen length of the signature
+     * @return true if the data and signature match
+     */
+    public static boolean verify(PublicKey publicKey, byte[] signedData, int dataOff, int dataLen,
+                                 byte[] signature, int sigOff, int sigLen) {
+        return verify(publicKey, ByteBuffer.wrap(signedData, dataOff, dataLen),
+                ByteBuffer.wrap(signature, sigOff, sigLen));
+    }
+
+    /**
+     * Verifies the remaining bytes of <var>signedData</var> against the remaining bytes
+     * of <var>signature</var> (already Base64-decoded). Both buffers are consumed.
+     *
+     * @param publicKey public key associated with the developer account
+     * @param signedData signed data from server, UTF-8 encoded
+     * @param signature server signature, already Base64-decoded
+     * @return true if the data and signature match
+     */
+    public static boolean verify(PublicKey publicKey, ByteBuffer signedData, ByteBuffer signature) {
         Signature sig;
         try {
             sig = Signature.getInstance(SIGNATURE_ALGORITHM);
             sig.initVerify(publicKey);
-            sig.update(signedData.getBytes());
-            if (!sig.verify(Base64.decode(signature))) {
+            sig.update(signedData);
+            boolean verified;
+            if (signature.hasArray()) {
+                verified = sig.verify(signature.array(), signature.arrayOffset() + signature.position(),
+                        signature.remaining());
+                signature.position(signature.limit());
+            }
+            else {
+                byte[] raw = new byte[signature.remaining()];
+                signature.get(raw);
+                verified = sig.verify(raw);
+            }
+            if (!verified) {
                 Log.e(TAG, "Signature verification failed.");
                 return false;
             }
@@ -118,8 +400,6 @@ public class Security {
             Log.e(TAG, "Invalid key specification.");
         } catch (SignatureException e) {
             Log.e(TAG, "Signature exception.");
-        } catch (Base64DecoderException e) {
-            Log.e(TAG, "Base64 decoding failed.");
         }
         return false;
     }
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import android.util.Log;
+
+import java.io.UnsupportedEncodingException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies purchase signatures against a single public key. The Base64 key is
+ * decoded and parsed only once per key string, and each thread keeps its own
+ * {@link Signature} instance already initialized for verification, so repeated
+ * calls (e.g. one per receipt in {@link IabHelper#queryPurchases}) only pay for
+ * the RSA operation itself.
+ *
+ * Obtain instances through {@link #forKey}; they are safe to share between threads.
+ */
+public class SignatureVerifier {
+    private static final String TAG = "IABUtil/SignatureVerifier";
+
+    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+
+    // Verifiers already built, keyed by the Base64-encoded public key.
+    private static final Map<String, SignatureVerifier> sVerifiers = new HashMap<String, SignatureVerifier>();
+
+    // Cache statistics (shared by all keys)
+    private static final AtomicLong sKeyHits = new AtomicLong();
+    private static final AtomicLong sKeyMisses = new AtomicLong();
+    private static final AtomicLong sSignatureHits = new AtomicLong();
+    private static final AtomicLong sSignatureMisses = new AtomicLong();
+
+    final String mBase64PublicKey;
+    final PublicKey mPublicKey;
+
+    // UTF-8 bytes of mBase64PublicKey, fed to the verification cache digest.
+    final byte[] mKeyBytes;
+
+    // Signature initialized with mPublicKey, one per thread.
+    private final ThreadLocal<Signature> mSignature = new ThreadLocal<Signature>();
+
+    SignatureVerifier(String base64PublicKey, PublicKey publicKey) {
+        mBase64PublicKey = base64PublicKey;
+        mPublicKey = publicKey;
+        try {
+            mKeyBytes = base64PublicKey.getBytes(Security.CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the verifier for the given Base64-encoded public key, decoding the key
+     * the first time it is seen.
+     *
+     * @param base64PublicKey the base64-encoded public key to use for verifying.
+     * @throws IllegalArgumentException if base64PublicKey is invalid
+     */
+    public static SignatureVerifier forKey(String base64PublicKey) {
+        synchronized (sVerifiers) {
+            SignatureVerifier verifier = sVerifiers.get(base64PublicKey);
+            if (verifier != null) {
+                sKeyHits.incrementAndGet();
+                return verifier;
+            }
+        }
+
+        // Decode outside the lock; a racing thread may build the same verifier, which is harmless.
+        sKeyMisses.incrementAndGet();
+        SignatureVerifier verifier = new SignatureVerifier(base64PublicKey,
+                Security.generatePublicKey(base64PublicKey));
+        synchronized (sVerifiers) {
+            SignatureVerifier existing = sVerifiers.get(base64PublicKey);
+            if (existing != null) return existing;
+            sVerifiers.put(base64PublicKey, verifier);
+        }
+        return verifier;
+    }
+
+    /** Drops all cached keys and resets the statistics. */
+    public static void clear() {
+        synchronized (sVerifiers) {
+            sVerifiers.clear();
+        }
+        sKeyHits.set(0);
+        sKeyMisses.set(0);
+        sSignatureHits.set(0);
+        sSignatureMisses.set(0);
+    }
+
+    /** Returns how many times a decoded public key was reused. */
+    public static long getKeyHitCount() { return sKeyHits.get(); }
+    /** Returns how many times a public key had to be decoded. */
+    public static long getKeyMissCount() { return sKeyMisses.get(); }
+    /** Returns how many times an initialized Signature was reused. */
+    public static long getSignatureHitCount() { return sSignatureHits.get(); }
+    /** Returns how many Signature instances had to be created and initialized. */
+    public static long getSignatureMissCount() { return sSignatureMisses.get(); }
+
+    public PublicKey getPublicKey() { return mPublicKey; }
+
+    /**
+     * Verifies that the signature from the server matches the computed
+     * signature on the data.  Returns true if the data is correctly signed.
+     *
+     * @param signedData signed data from server
+     * @param signature server signature
+     * @return true if the data and signature match
+     */
+    public boolean verify(String signedData, String signature) {
+        Security.Scratch scratch = Security.getScratch();
+        int dataLen = scratch.putData(signedData);
+        int sigLen = scratch.putSignature(signature);
+        byte[] decoded = scratch.decodeBuffer(sigLen);
+        try {
+            int decodedLen = Base64.decodeInto(scratch.mSignature, 0, sigLen, decoded, 0);
+            return verify(scratch.mData, 0, dataLen, decoded, 0, decodedLen);
+        } catch (Base64DecoderException e) {
+            Log.e(TAG, "Base64 decoding failed.");
+        }
+        return false;
+    }
+
+    /**
+     * Verifies that the signature from the server matches the computed
+     * signature on the data.  Returns true if the data is correctly signed.
+     *
+     * @param signedData signed data from server, UTF-8 encoded
+     * @param dataOff offset of the signed data
+     * @param dataLen length of the signed data
+     * @param signature server signature, already Base64-decoded
+     * @param sigOff offset of the signature
+     * @param sigLen length of the signature
+     * @return true if the data and signature match
+     */
+    public boolean verify(byte[] signedData, int dataOff, int dataLen,
+                          byte[] signature, int sigOff, int sigLen) {
+        Signature sig = null;
+        try {
+            sig = obtainSignature();
+            sig.update(signedData, dataOff, dataLen);
+            // verify() resets the Signature to its initVerify state, so it can be reused.
+            if (!sig.verify(signature, sigOff, sigLen)) {
+                Log.e(TAG, "Signature verification failed.");
+                return false;
+            }
+            return true;
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "NoSuchAlgorithmException.");
+        } catch (InvalidKeyException e) {
+            Log.e(TAG, "Invalid key specification.");
+        } catch (SignatureException e) {
+            Log.e(TAG, "Signature exception.");
+        }
+        // The Signature may be left with partial data; don't hand it out again.
+        if (sig != null) mSignature.remove();
+        return false;
+    }
+
+    private Signature obtainSignature() throws NoSuchAlgorithmException, InvalidKeyException {
+        Signature sig = mSignature.get();
+        if (sig != null) {
+            sSignatureHits.incrementAndGet();
+            return sig;
+        }
+        sSignatureMisses.incrementAndGet();
+        sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+        sig.initVerify(mPublicKey);
+        mSignature.set(sig);
+        return sig;
+    }
+}
@@ -30,13 +30,76 @@ public class SkuDetails {
     String mDescription;
     String mJson;
 
+    // When these details were received from the service (System.currentTimeMillis()), 0 if unknown
+    long mFetchTime;
+
+    // False while lazily built details still have their fields (other than the SKU) to decode.
+    private volatile boolean mDecoded;
+
+    // Fields pulled out by JsonScanner, in this order.
+    private static final String[] FIELDS = { "productId", "type", "price", "title", "description" };
+    private static final String[] SKU_FIELD = { "productId" };
+
     public SkuDetails(String jsonSkuDetails) throws JSONException {
         this(IabHelper.ITEM_TYPE_INAPP, jsonSkuDetails);
     }
     
     public SkuDetails(String itemType, String jsonSkuDetails) throws JSONException {
+        this(itemType, jsonSkuDetails, false);
+    }
+
+    /**
+     * @param lazy if true, only the SKU is read now and the other fields are decoded
+     *     the first time one of them is asked for
+     */
+    SkuDetails(String itemType, String jsonSkuDetails, boolean lazy) throws JSONException {
         mItemType = itemType;
         mJson = jsonSkuDetails;
+        // The scan also checks the whole document, so a later decode can't fail on bad JSON.
+        if (lazy && scanSku()) return;
+        if (!scanFields()) parseFields();
+        mDecoded = true;
+    }
+
+    /** Rebuilds details from fields that were already decoded, e.g. by {@link InventoryCodec}. */
+    SkuDetails(String itemType, String sku, String type, String price, String title,
+               String description, String json) {
+        mItemType = itemType;
+        mSku = sku;
+        mType = type;
+        mPrice = price;
+        mTitle = title;
+        mDescription = description;
+        mJson = json;
+        mDecoded = true;
+    }
+
+    private boolean scanSku() {
+        String[] values = new String[1];
+        byte[] kinds = new byte[1];
+        if (!JsonScanner.scan(mJson, SKU_FIELD, values, kinds)) return false;
+        mSku = optString(values[0]);
+        return true;
+    }
+
+    // Reads the fields with JsonScanner. Returns false if the JSON has to go through JSONObject.
+    private boolean scanFields() {
+        String[] values = new String[FIELDS.length];
+        byte[] kinds = new byte[FIELDS.length];
+        if (!JsonScanner.scan(mJson, FIELDS, values, kinds)) return false;
+        mSku = optString(values[0]);
+        mType = optString(values[1]);
+        mPrice = optString(values[2]);
+        mTitle = optString(values[3]);
+        mDescription = optString(values[4]);
+        return true;
+    }
+
+    private static String optString(String value) {
+        return value != null ? value : "";
+    }
+
+    private void parseFields() throws JSONException {
         JSONObject o = new JSONObject(mJson);
         mSku = o.optString("productId");
         mType = o.optString("type");
@@ -45,11 +108,30 @@ public class SkuDetails {
         mDescription = o.optString("description");
     }
 
+    private void decode() {
+        if (mDecoded) return;
+        synchronized (this) {
+            if (mDecoded) return;
+            try {
+                if (!scanFields()) parseFields();
+            }
+            catch (JSONException e) {
+                // Can't happen: the JSON was checked when these details were built.
+            }
+            mDecoded = true;
+        }
+    }
+
+    /** Returns whether these details were fetched less than maxAgeMillis ago. */
+    boolean isFresh(long now, long maxAgeMillis) {
+        return mFetchTime > 0 && now >= mFetchTime && now - mFetchTime < maxAgeMillis;
+    }
+
     public String getSku() { return mSku; }
-    public String getType() { return mType; }
-    public String getPrice() { return mPrice; }
-    public String getTitle() { return mTitle; }
-    public String getDescription() { return mDescription; }
+    public String getType() { decode(); return mType; }
+    public String getPrice() { decode(); return mPrice; }
+    public String getTitle() { decode(); return mTitle; }
+    public String getDescription() { decode(); return mDescription; }
     public String getJson() { return mJson; }
 
     @Override
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LRU cache of SKU details. Each entry expires a while after the details were fetched;
+ * an expired entry is still returned by {@link #get} (prices and titles rarely change)
+ * and listed by {@link #getExpiredSkus} so that it can be refreshed in the background.
+ * The cache is bounded both in entries and in (estimated) bytes; the least recently
+ * used entries go first.
+ *
+ * Instances are safe to share between threads.
+ */
+public class SkuDetailsCache {
+    public static final int DEFAULT_MAX_ENTRIES = 500;
+    public static final long DEFAULT_MAX_BYTES = 512 * 1024;
+
+    // Rough size of an entry besides its strings, in bytes.
+    static final int ENTRY_OVERHEAD = 96;
+
+    private static final class Entry {
+        final SkuDetails mDetails;
+        final long mExpiresAt;
+        // While a refresh of the expired entry is postponed, the time it may be retried.
+        long mRetryAfter;
+        final long mBytes;
+
+        Entry(SkuDetails details, long expiresAt) {
+            mDetails = details;
+            mExpiresAt = expiresAt;
+            mBytes = ENTRY_OVERHEAD + 2L * (details.getSku().length() + details.getJson().length());
+        }
+    }
+
+    // Access order, so iteration starts at the least recently used entry.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private final int mMaxEntries;
+    private final long mMaxBytes;
+    private final long mTtl;
+    private long mBytes;
+
+    /**
+     * @param maxEntries the largest number of SKUs kept
+     * @param maxBytes the largest estimated size of the cached details, in bytes
+     * @param ttlMillis how long details stay fresh unless {@link #put(SkuDetails, long)} says otherwise
+     */
+    public SkuDetailsCache(int maxEntries, long maxBytes, long ttlMillis) {
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+        mTtl = ttlMillis;
+    }
+
+    /** Adds details that stay fresh for the default time to live. */
+    public void put(SkuDetails details) {
+        put(details, mTtl);
+    }
+
+    /** Adds details that stay fresh for ttlMillis after they were fetched. */
+    public synchronized void put(SkuDetails details, long ttlMillis) {
+        long fetched = details.mFetchTime > 0 ? details.mFetchTime : System.currentTimeMillis();
+        Entry entry = new Entry(details, fetched + ttlMillis);
+        Entry old = mEntries.put(details.getSku(), entry);
+        if (old != null) mBytes -= old.mBytes;
+        mBytes += entry.mBytes;
+        trim();
+    }
+
+    public void putAll(List<SkuDetails> details) {
+        for (SkuDetails d : details) put(d);
+    }
+
+    /** Returns the cached details of sku, expired or not, or null if there are none. */
+    public synchronized SkuDetails get(String sku) {
+        Entry entry = mEntries.get(sku);
+        return entry == null ? null : entry.mDetails;
+    }
+
+    /** Returns the details of sku if they are cached, of the given item type, and not expired. */
+    public synchronized SkuDetails getFresh(String sku, String itemType, long now) {
+        Entry entry = mEntries.get(sku);
+        if (entry == null || now >= entry.mExpiresAt || !itemType.equals(entry.mDetails.mItemType)) return null;
+        return entry.mDetails;
+    }
+
+    /** Returns whether sku is cached but expired, and its refresh isn't postponed. */
+    public synchronized boolean isExpired(String sku, long now) {
+        Entry entry = mEntries.get(sku);
+        return entry != null && isDue(entry, now);
+    }
+
+    /**
+     * Returns the expired SKUs whose refresh isn't postponed, grouped by item type,
+     * least recently used first.
+     */
+    public synchronized Map<String, List<String>> getExpiredSkus(long now) {
+        Map<String, List<String>> expired = new HashMap<String, List<String>>();
+        for (Entry entry : mEntries.values()) {
+            if (!isDue(entry, now)) continue;
+            List<String> skus = expired.get(entry.mDetails.mItemType);
+            if (skus == null) {
+                skus = new ArrayList<String>();
+                expired.put(entry.mDetails.mItemType, skus);
+            }
+            skus.add(entry.mDetails.getSku());
+        }
+        return expired;
+    }
+
+    /**
+     * Keeps the given SKUs, if they are expired at now, out of {@link #isExpired} and
+     * {@link #getExpiredSkus} until retryAt. They stay expired for {@link #getFresh}, and
+     * {@link #get} still returns them meanwhile.
+     *
+     * @return how many entries were postponed
+     */
+    synchronized int postpone(List<String> skus, long now, long retryAt) {
+        int postponed = 0;
+        for (String sku : skus) {
+            Entry entry = mEntries.get(sku);
+            if (entry != null && now >= entry.mExpiresAt) {
+                entry.mRetryAfter = retryAt;
+                postponed++;
+            }
+        }
+        return postponed;
+    }
+
+    public synchronized void remove(String sku) {
+        Entry old = mEntries.remove(sku);
+        if (old != null) mBytes -= old.mBytes;
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    /** Returns the number of cached SKUs. */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /** Returns the estimated size of the cached details, in bytes. */
+    public synchronized long getByteSize() {
+        return mBytes;
+    }
+
+    // Whether the entry is expired and may be refreshed now.
+    private static boolean isDue(Entry entry, long now) {
+        return now >= entry.mExpiresAt && now >= entry.mRetryAfter;
+    }
+
+    // Drops least recently used entries until both bounds hold.
+    private void trim() {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while ((mEntries.size() > mMaxEntries || mBytes > mMaxBytes) && it.hasNext()) {
+            mBytes -= it.next().mBytes;
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Currency;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the last known SKU details in an app-private file, one file per device locale
+ * and currency, so that a storefront can show titles and prices before (or without)
+ * a getSkuDetails() round trip.
+ *
+ * <pre>
+ *   int   magic ('IABD')
+ *   int   format version
+ *   int   entry count
+ *   long  CRC32 of everything that follows
+ *   index, sorted by SKU: int SKU length, UTF-8 SKU, int record offset, int record length
+ *   records: the {@link InventoryCodec} encoding of each SkuDetails
+ * </pre>
+ *
+ * Loading maps the file and reads only the index; a record is decoded the first time its
+ * SKU is asked for. The file is rewritten atomically by {@link #save}. Missing, truncated
+ * or corrupt files are ignored. Details read back from the store have no fetch time, so
+ * they are never taken for fresh ones.
+ */
+public class SkuDetailsStore {
+    private static final String TAG = "IABUtil/SkuDetailsStore";
+
+    static final String FILE_PREFIX = "iab_sku_details_";
+    static final String FILE_SUFFIX = ".store";
+
+    static final int MAGIC = 0x49414244; // "IABD"
+    static final int FORMAT_VERSION = 1;
+    // magic, version, entry count, CRC32
+    static final int HEADER_LENGTH = 4 + 4 + 4 + 8;
+
+    private final File mFile;
+    private final Object mSaveLock = new Object();
+
+    // Sorted SKUs, and their details once decoded.
+    private String[] mSkus;
+    private SkuDetails[] mDetails;
+
+    // Where the records of details not decoded yet are, in mRecords.
+    private ByteBuffer mRecords;
+    private int[] mOffsets;
+    private int[] mLengths;
+
+    /** Opens the store for the current default locale. */
+    public SkuDetailsStore(Context ctx) {
+        this(ctx, Locale.getDefault());
+    }
+
+    public SkuDetailsStore(Context ctx, Locale locale) {
+        this(new File(ctx.getFilesDir(), FILE_PREFIX + localeKey(locale) + FILE_SUFFIX));
+    }
+
+    SkuDetailsStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Returns the key that tells apart stores for different locales, e.g. "ja_JP_JPY".
+     * Prices depend on the currency as well as the language, so both are part of it.
+     */
+    static String localeKey(Locale locale) {
+        StringBuilder key = new StringBuilder(locale.toString());
+        try {
+            Currency currency = Currency.getInstance(locale);
+            if (currency != null) key.append('_').append(currency.getCurrencyCode());
+        }
+        catch (IllegalArgumentException e) {
+            // No country, so no currency.
+        }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9')) key.setCharAt(i, '_');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns the stored details of sku, or null if there are none. The first call reads
+     * the index from disk.
+     */
+    public synchronized SkuDetails get(String sku) {
+        load();
+        int i = Arrays.binarySearch(mSkus, sku);
+        if (i < 0) return null;
+        if (mDetails[i] == null) {
+            ByteBuffer record = mRecords.duplicate();
+            record.position(mOffsets[i]);
+            record.limit(mOffsets[i] + mLengths[i]);
+            try {
+                mDetails[i] = InventoryCodec.decodeSkuDetails(record.slice());
+            }
+            catch (IOException e) {
+                // The checksum matched, so the record was written like this; skip it.
+                Log.e(TAG, "Ignoring stored details of " + sku + ": " + e);
+                return null;
+            }
+        }
+        return mDetails[i];
+    }
+
+    /** Returns all stored details. */
+    public List<SkuDetails> getAll() {
+        String[] skus;
+        synchronized (this) {
+            load();
+            skus = mSkus;
+        }
+        List<SkuDetails> all = new ArrayList<SkuDetails>(skus.length);
+        for (String sku : skus) {
+            SkuDetails d = get(sku);
+            if (d != null) all.add(d);
+        }
+        return all;
+    }
+
+    /** Returns the number of stored SKUs. */
+    public synchronized int size() {
+        load();
+        return mSkus.length;
+    }
+
+    /**
+     * Adds the given details to the store, replacing the stored details of the same SKUs;
+     * the other stored SKUs are kept. Failures are logged and leave the previous file (if
+     * any) in place.
+     */
+    public void save(Collection<SkuDetails> details) {
+        // One save at a time, so that concurrent ones don't drop each other's details.
+        synchronized (mSaveLock) {
+            saveLocked(details);
+        }
+    }
+
+    private void saveLocked(Collection<SkuDetails> details) {
+        // Sorted by SKU for the index; a later duplicate wins. Each value is either the
+        // details or, for a stored SKU never decoded, its encoded record.
+        TreeMap<String, Object> sorted = new TreeMap<String, Object>();
+        synchronized (this) {
+            load();
+            for (int i = 0; i < mSkus.length; i++) {
+                if (mDetails[i] != null) {
+                    sorted.put(mSkus[i], mDetails[i]);
+                }
+                else {
+                    byte[] record = new byte[mLengths[i]];
+                    ByteBuffer buffer = mRecords.duplicate();
+                    buffer.position(mOffsets[i]);
+                    buffer.get(record);
+                    sorted.put(mSkus[i], record);
+                }
+            }
+        }
+        for (SkuDetails d : details) sorted.put(d.getSku(), d);
+
+        int count = sorted.size();
+        String[] skus = new String[count];
+        SkuDetails[] decoded = new SkuDetails[count];
+        int[] offsets = new int[count];
+        int[] lengths = new int[count];
+        byte[] recordBytes;
+        byte[] body;
+        try {
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            ByteBuffer scratch = ByteBuffer.allocate(4);
+            int i = 0;
+            for (Map.Entry<String, Object> e : sorted.entrySet()) {
+                skus[i] = e.getKey();
+                byte[] record;
+                if (e.getValue() instanceof SkuDetails) {
+                    decoded[i] = (SkuDetails) e.getValue();
+                    record = InventoryCodec.encode(decoded[i]);
+                }
+                else {
+                    record = (byte[]) e.getValue();
+                }
+                byte[] sku = e.getKey().getBytes(Security.CHARSET);
+                offsets[i] = records.size();
+                lengths[i] = record.length;
+                writeInt(index, scratch, sku.length);
+                index.write(sku);
+                writeInt(index, scratch, offsets[i]);
+                writeInt(index, scratch, lengths[i]);
+                records.write(record);
+                i++;
+            }
+            recordBytes = records.toByteArray();
+            index.write(recordBytes);
+            body = index.toByteArray();
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Encoding SKU details failed: " + e);
+            return;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putInt(count);
+        header.putLong(crc.getValue());
+
+        // Write a temporary file and rename it over the old one, so readers never see half a file.
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(header.array());
+            out.write(body);
+            out.getFD().sync();
+            out.close();
+            out = null;
+            synchronized (this) {
+                if (!tmp.renameTo(mFile)) throw new IOException("Can't rename " + tmp + ".");
+                set(skus, decoded, ByteBuffer.wrap(recordBytes), offsets, lengths);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Saving SKU details failed: " + e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /** Deletes the stored details. */
+    public synchronized void clear() {
+        mFile.delete();
+        set(new String[0], new SkuDetails[0], null, null, null);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, ByteBuffer scratch, int value) {
+        scratch.clear();
+        scratch.putInt(value);
+        out.write(scratch.array(), 0, 4);
+    }
+
+    private void set(String[] skus, SkuDetails[] details, ByteBuffer records, int[] offsets, int[] lengths) {
+        mSkus = skus;
+        mDetails = details;
+        mRecords = records;
+        mOffsets = offsets;
+        mLengths = lengths;
+    }
+
+    // Reads the index, once. Called with the lock held.
+    private void load() {
+        if (mSkus != null) return;
+        set(new String[0], new SkuDetails[0], null, null, null);
+        if (!mFile.isFile()) return;
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "r");
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) throw new IOException("Bad size " + size + ".");
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            if (map.getInt() != MAGIC) throw new IOException("Bad magic number.");
+            int version = map.getInt();
+            if (version != FORMAT_VERSION) throw new IOException("Unsupported version " + version + ".");
+            int count = map.getInt();
+            long checksum = map.getLong();
+            ByteBuffer body = map.slice();
+            if (checksum(body.duplicate()) != checksum) throw new IOException("Checksum mismatch.");
+            if (count < 0 || count > body.remaining() / 12) throw new IOException("Bad entry count " + count + ".");
+
+            String[] skus = new String[count];
+            int[] offsets = new int[count];
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                int length = body.getInt();
+                if (length < 0 || length > body.remaining()) throw new IOException("Bad SKU length.");
+                byte[] sku = new byte[length];
+                body.get(sku);
+                skus[i] = new String(sku, Security.CHARSET);
+                offsets[i] = body.getInt();
+                lengths[i] = body.getInt();
+                if (i > 0 && skus[i - 1].compareTo(skus[i]) >= 0) throw new IOException("Index not sorted.");
+            }
+            ByteBuffer records = body.slice();
+            for (int i = 0; i < count; i++) {
+                if (offsets[i] < 0 || lengths[i] < 0 || offsets[i] > records.limit() - lengths[i]) {
+                    throw new IOException("Bad record bounds.");
+                }
+            }
+            set(skus, new SkuDetails[count], records, offsets, lengths);
+        } catch (IOException e) {
+            Log.e(TAG, "Ignoring stored SKU details: " + e);
+            mFile.delete();
+        } catch (BufferUnderflowException e) {
+            Log.e(TAG, "Ignoring truncated SKU details: " + e);
+            mFile.delete();
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static long checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        while (buffer.hasRemaining()) {
+            int n = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of signature verification outcomes. A receipt never changes once
+ * issued, so the result of verifying (signedData, signature, publicKey) can be reused
+ * on every later inventory refresh. Failed verifications are remembered too (in a
+ * separate, smaller LRU) so that a forged receipt submitted over and over doesn't
+ * cost an RSA operation each time, nor push genuine receipts out of the cache.
+ *
+ * Entries are keyed by a SHA-1 digest of the three inputs, so the cache holds no
+ * receipt data itself.
+ */
+public class VerificationCache {
+    static final int MAX_VERIFIED_ENTRIES = 2048;
+    static final int MAX_FAILED_ENTRIES = 256;
+
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+
+    private static final Map<Key, Boolean> sVerified = new LruMap(MAX_VERIFIED_ENTRIES);
+    private static final Map<Key, Boolean> sFailed = new LruMap(MAX_FAILED_ENTRIES);
+
+    private static final AtomicLong sHits = new AtomicLong();
+    private static final AtomicLong sMisses = new AtomicLong();
+
+    private static final int DIGEST_LENGTH = 20;
+
+    // Lookup key reused by each thread, so cache hits don't allocate.
+    private static final ThreadLocal<Key> sProbe = new ThreadLocal<Key>() {
+        @Override
+        protected Key initialValue() {
+            return new Key(new byte[DIGEST_LENGTH]);
+        }
+    };
+
+    private static final ThreadLocal<MessageDigest> sDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(DIGEST_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private VerificationCache() {
+    }
+
+    /** Digest of a (publicKey, signedData, signature) triple. */
+    static final class Key {
+        final byte[] mDigest;
+        int mHash;
+
+        Key(byte[] digest) {
+            mDigest = digest;
+            rehash();
+        }
+
+        void rehash() {
+            mHash = Arrays.hashCode(mDigest);
+        }
+
+        @Override
+        public int hashCode() { return mHash; }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(mDigest, ((Key) o).mDigest);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class LruMap extends LinkedHashMap<Key, Boolean> {
+        private final int mMaxEntries;
+
+        LruMap(int maxEntries) {
+            super(16, 0.75f, true);
+            mMaxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+            return size() > mMaxEntries;
+        }
+    }
+
+    /**
+     * Returns the cache key for the given verification inputs. The returned object is
+     * reused by the calling thread; it stays valid until the next call to probe() and
+     * is copied by {@link #put} if it has to be stored.
+     */
+    static Key probe(byte[] publicKey, byte[] signedData, int dataOff, int dataLen,
+                     byte[] signature, int sigOff, int sigLen) {
+        MessageDigest md = sDigest.get();
+        update(md, publicKey, 0, publicKey.length);
+        update(md, signedData, dataOff, dataLen);
+        update(md, signature, sigOff, sigLen);
+        Key probe = sProbe.get();
+        try {
+            md.digest(probe.mDigest, 0, probe.mDigest.length);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);
+        }
+        probe.rehash();
+        return probe;
+    }
+
+    // Length-prefixed so that ("ab", "c") and ("a", "bc") never collide.
+    private static void update(MessageDigest md, byte[] b, int off, int len) {
+        md.update((byte) (len >>> 24));
+        md.update((byte) (len >>> 16));
+        md.update((byte) (len >>> 8));
+        md.update((byte) len);
+        md.update(b, off, len);
+    }
+
+    /**
+     * Returns the cached outcome for key, or null if it isn't known.
+     */
+    static Boolean get(Key key) {
+        Boolean result;
+        synchronized (sVerified) {
+            result = sVerified.get(key);
+            if (result == null) result = sFailed.get(key);
+        }
+        if (result != null) sHits.incrementAndGet();
+        return result;
+    }
+
+    /** Records the outcome of verifying the inputs behind key. */
+    static void put(Key key, boolean verified) {
+        putOwned(copy(key), verified);
+    }
+
+    /** Same as {@link #put}, but stores key itself, which the caller must not reuse. */
+    static void putOwned(Key key, boolean verified) {
+        sMisses.incrementAndGet();
+        synchronized (sVerified) {
+            if (verified) sVerified.put(key, Boolean.TRUE);
+            else sFailed.put(key, Boolean.FALSE);
+        }
+    }
+
+    /** Returns a copy of key that stays valid after the next {@link #probe}. */
+    static Key copy(Key key) {
+        return new Key(key.mDigest.clone());
+    }
+
+    /** Drops all cached outcomes and resets the statistics. */
+    public static void clear() {
+        synchronized (sVerified) {
+            sVerified.clear();
+            sFailed.clear();
+        }
+        sHits.set(0);
+        sMisses.set(0);
+    }
+
+    /** Returns how many lookups were answered from the cache. */
+    public static long getHitCount() { return sHits.get(); }
+    /** Returns how many outcomes had to be computed by a real verification. */
+    public static long getMissCount() { return sMisses.get(); }
+
+    /** Returns the number of cached outcomes, successful and failed. */
+    public static int size() {
+        synchronized (sVerified) {
+            return sVerified.size() + sFailed.size();
+        }
+    }
+}
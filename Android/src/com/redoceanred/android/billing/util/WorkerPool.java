@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import android.os.Build;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of named daemon worker threads. Idle threads exit after a while
+ * (from Android 2.3 on), so a pool that isn't used costs nothing. Besides the usual {@link ThreadPoolExecutor}
+ * statistics ({@link #getActiveCount}, {@link #getCompletedTaskCount}, ...) it reports
+ * how many tasks are waiting for a thread.
+ */
+public class WorkerPool extends ThreadPoolExecutor {
+    static final int KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * @param name prefix of the thread names, which are numbered from 1
+     * @param threads maximum number of threads
+     * @param queueCapacity maximum number of tasks waiting for a thread; more are rejected
+     */
+    public WorkerPool(final String name, int threads, int queueCapacity) {
+        super(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name + "-" + mCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        // Added in API 9; before that, threads stay once started.
+        if (Build.VERSION.SDK_INT >= 9 /*Build.VERSION_CODES.GINGERBREAD*/) {
+            allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /** Returns the number of tasks waiting for a thread. */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    /** Grows the pool to at least the given number of threads. */
+    synchronized void ensureThreads(int threads) {
+        if (getMaximumPoolSize() < threads) {
+            setMaximumPoolSize(threads);
+            setCorePoolSize(threads);
+        }
+    }
+}
@@ -21,8 +21,11 @@ import java.util.List;
 import com.redoceanred.android.billing.util.IabHelper;
 import com.redoceanred.android.billing.util.IabResult;
 import com.redoceanred.android.billing.util.Inventory;
+import com.redoceanred.android.billing.util.InventoryDiff;
+import com.redoceanred.android.billing.util.InventorySnapshot;
 import com.redoceanred.android.billing.util.Purchase;
 import com.redoceanred.android.billing.util.SkuDetails;
+import com.redoceanred.android.billing.util.SkuDetailsStore;
 import com.redoceanred.unity.android.activity.BillingNativeActivity;
 import com.unity3d.player.UnityPlayer;
 
@@ -174,6 +177,7 @@ public class BillingPlugin {
 
 	/**
 	 * 初期化処理後にアプリの購入済みアイテム情報を取得する.
+	 * 初期化完了前は前回保存した購入情報から所有状態のみを返す.消費処理は行わないため、consumeがtrueの場合はfalseを返す.
 	 * 
 	 * @param productId
 	 *            課金アイテムのID.
@@ -182,6 +186,13 @@ public class BillingPlugin {
 	 * @return true 成功, false 失敗.
 	 */
 	public boolean getPurchaseData(String productId, boolean consume) {
+		if (mPurchaseState.equals(PurchaseState.Initialize)) {
+			if (consume) {
+				return false;
+			}
+			Inventory inventory = getInventory();
+			return inventory != null && inventory.hasPurchase(productId);
+		}
 		if (!mPurchaseState.equals(PurchaseState.Idle)) {
 			return false;
 		}
@@ -211,7 +222,7 @@ public class BillingPlugin {
 	 *         ref. http://developer.android.com/google/play/billing/billing_reference.html#getSkuDetails
 	 */
 	public String getProductDetail(String productId) {
-		SkuDetails d = mInventory.getSkuDetails(productId);
+		SkuDetails d = getSkuDetails(productId);
 		if (d != null) {
 			return d.getJson();
 		} else {
@@ -225,7 +236,7 @@ public class BillingPlugin {
 	 * @return Price.
 	 */
 	public String getProductPrice(String productId) {
-		SkuDetails d = mInventory.getSkuDetails(productId);
+		SkuDetails d = getSkuDetails(productId);
 		if (d != null) {
 			return d.getPrice();
 		} else {
@@ -239,7 +250,7 @@ public class BillingPlugin {
 	 * @return Title.
 	 */
 	public String getProductTitle(String productId) {
-		SkuDetails d = mInventory.getSkuDetails(productId);
+		SkuDetails d = getSkuDetails(productId);
 		if (d != null) {
 			return d.getTitle();
 		} else {
@@ -253,7 +264,7 @@ public class BillingPlugin {
 	 * @return Description.
 	 */
 	public String getProductDescription(String productId) {
-		SkuDetails d = mInventory.getSkuDetails(productId);
+		SkuDetails d = getSkuDetails(productId);
 		if (d != null) {
 			return d.getDescription();
 		} else {
@@ -288,18 +299,30 @@ public class BillingPlugin {
 			mHelper.dispose();
 			mHelper = null;
 		}
+		if (mCallBack != null) {
+			mCallBack.dispose();
+		}
 	}
 
 	// 以下Billingサンプルからの転載.
 	private IabHelper mHelper;
-	private Inventory mInventory;
+	private volatile Inventory mInventory;
+	/**
+	 * 前回起動時のアイテム情報.初期化完了までの間、アイテム情報の取得に使用する.
+	 */
+	private InventorySnapshot mSnapshot;
+	/**
+	 * 前回起動時のアイテム詳細情報(端末のロケール別).初期化完了前も価格を表示するために使用する.
+	 */
+	private SkuDetailsStore mDetailsStore;
+	/**
+	 * アイテム情報取得前のアイテム情報.差分通知に使用する.
+	 */
+	private Inventory mPreviousInventory;
 	static final int RC_REQUEST = 10001;
 
 	public void initBilling(String publicKey, final String inappSkus, final String subsSkus) {
-		mHelper = new IabHelper(UnityPlayer.currentActivity, publicKey);
-		mHelper.enableDebugLogging(true);
-
-		mHelper.startSetup(new IabHelper.OnIabSetupFinishedListener() {
+		IabHelper.OnIabSetupFinishedListener setupListener = new IabHelper.OnIabSetupFinishedListener() {
 			public void onIabSetupFinished(IabResult result) {
 				if (!result.isSuccess()) {
 					mCallBack.initMessage(false);
@@ -315,10 +338,35 @@ public class BillingPlugin {
 				if (subsSkus != null) {
 					subsArray = Arrays.asList(subsSkus.split(","));
 				}
+				// 差分通知のため、取得前のアイテム情報を保持する.(取得後はスナップショットも更新されるため)
+				// スナップショットはアイテム詳細情報を持たないため、保存した詳細情報を加える.
+				mPreviousInventory = mInventory != null ? mInventory : mSnapshot.get(mDetailsStore);
 				// アイテム情報を取得.
 				mHelper.queryInventoryAsync(true, inappArray, subsArray, mGotInventoryListener);
 			}
-		});
+		};
+
+		// 事前接続済みのHelperがあれば使用する.
+		IabHelper warmHelper = BillingWarmUp.take();
+		if (warmHelper != null) {
+			mHelper = warmHelper;
+			mHelper.setPublicKey(publicKey);
+		} else {
+			mHelper = new IabHelper(UnityPlayer.currentActivity, publicKey);
+		}
+		mHelper.enableDebugLogging(true);
+		// 取得したアイテム情報を次回起動時のために保存する.
+		mSnapshot = new InventorySnapshot(UnityPlayer.currentActivity);
+		mHelper.setInventorySnapshot(mSnapshot);
+		// アイテム詳細情報はロケール別に保存する.
+		mDetailsStore = new SkuDetailsStore(UnityPlayer.currentActivity);
+		mHelper.setSkuDetailsStore(mDetailsStore);
+
+		if (warmHelper != null) {
+			BillingWarmUp.notifySetupFinished(setupListener);
+		} else {
+			mHelper.startSetup(setupListener);
+		}
 	}
 
 	// 初期化完了通知.
@@ -329,6 +377,10 @@ public class BillingPlugin {
 				return;
 			}
 			
+			// 前回のアイテム情報(前回起動時に保存したものを含む)との差分を求める.
+			InventoryDiff diff = InventoryDiff.compute(mPreviousInventory, inventory);
+			mPreviousInventory = null;
+
 			// 情報を内部に保持する.
 			mInventory = inventory;
 			initState();
@@ -340,6 +392,7 @@ public class BillingPlugin {
 			}
 
 			mCallBack.initMessage(true);
+			mCallBack.inventoryMessage(diff);
 		}
 	};
 
@@ -388,6 +441,54 @@ public class BillingPlugin {
 		}
 	};
 	
+	/**
+	 * アイテム情報を取得する.初期化完了前は前回起動時に保存したアイテム情報を返す.
+	 * @return アイテム情報.取得できない場合はnull.
+	 */
+	private Inventory getInventory() {
+		if (mInventory != null) {
+			return mInventory;
+		}
+		if (mSnapshot != null) {
+			Inventory inventory = mSnapshot.get();
+			if (inventory != null) {
+				inventory.setSkuDetailsStore(mDetailsStore);
+			}
+			return inventory;
+		}
+		return null;
+	}
+
+	/**
+	 * アイテム詳細情報を取得する.キャッシュにあれば期限切れでも直ちに返し、バックグラウンドで更新する.
+	 * @param productId 課金アイテムのID.
+	 * @return アイテム詳細情報.取得できない場合はnull.
+	 */
+	private SkuDetails getSkuDetails(String productId) {
+		IabHelper helper = mHelper;
+		if (helper != null) {
+			SkuDetails d = helper.getSkuDetails(productId);
+			if (d != null) {
+				return d;
+			}
+		}
+		if (mInventory != null) {
+			return mInventory.getSkuDetails(productId);
+		}
+		// 初期化完了前は現在のロケールで保存した情報を優先する.(スナップショットは別の通貨の場合がある)
+		if (mDetailsStore != null) {
+			SkuDetails d = mDetailsStore.get(productId);
+			if (d != null) {
+				return d;
+			}
+		}
+		Inventory inventory = getInventory();
+		if (inventory != null) {
+			return inventory.getSkuDetails(productId);
+		}
+		return null;
+	}
+
 	// 状態を初期化.
 	private void initState() {
 		mPurchaseState = PurchaseState.Idle;
@@ -15,6 +15,13 @@
  */
 package com.redoceanred.unity.android;
 
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import com.redoceanred.android.billing.util.InventoryDiff;
+import com.redoceanred.android.billing.util.Purchase;
+import com.redoceanred.android.billing.util.SkuDetails;
+import com.redoceanred.android.billing.util.WorkerPool;
 import com.unity3d.player.UnityPlayer;
 
 /**
@@ -22,11 +29,47 @@ import com.unity3d.player.UnityPlayer;
  */
 public class BillingPluginCallback {
 	private String mGameObject;
+	/**
+	 * 非同期通知の実行に使用するExecutor.未設定の場合はmWorkerPoolを使用する.
+	 */
+	private Executor mExecutor;
+	/**
+	 * 非同期通知用のスレッド.通知順を保つため1スレッド.
+	 */
+	private WorkerPool mWorkerPool;
 
 	public BillingPluginCallback(final String gameObject) {
 		mGameObject = gameObject;
 	}
 
+	/**
+	 * 非同期通知の実行に使用するExecutorを設定する.
+	 * @param executor Executor.nullの場合は内部のスレッドを使用する.
+	 */
+	public synchronized void setExecutor(Executor executor) {
+		mExecutor = executor;
+	}
+
+	private synchronized Executor getExecutor() {
+		if (mExecutor != null) {
+			return mExecutor;
+		}
+		if (mWorkerPool == null) {
+			mWorkerPool = new WorkerPool("BillingPluginCallback", 1, Integer.MAX_VALUE);
+		}
+		return mWorkerPool;
+	}
+
+	/**
+	 * リリース処理を実行する.内部のスレッドを終了する.(通知済みのメッセージは送信される)
+	 */
+	public synchronized void dispose() {
+		if (mWorkerPool != null) {
+			mWorkerPool.shutdown();
+			mWorkerPool = null;
+		}
+	}
+
 	/**
 	 * 初期化処理の結果を通知する.
 	 * @param success true 成功, false 失敗.
@@ -35,6 +78,45 @@ public class BillingPluginCallback {
 		UnityPlayer.UnitySendMessage(mGameObject, "InitMessage", Boolean.toString(success));
 	}
 
+	/**
+	 * アイテム情報の変更内容を通知する.
+	 * 書式は "バージョン,ハッシュ,追加購入,削除購入,変更購入,追加詳細,削除詳細,変更詳細".
+	 * 各リストはアイテムIDを";"で連結したもの.ハッシュが前回と同じ場合は内容に変更なし.
+	 * @param diff 前回のアイテム情報との差分.
+	 */
+	public void inventoryMessage(InventoryDiff diff) {
+		StringBuilder message = new StringBuilder();
+		message.append(diff.getVersion()).append(',');
+		message.append(Long.toHexString(diff.getContentHash()));
+		appendPurchases(message, diff.getAddedPurchases());
+		appendPurchases(message, diff.getRemovedPurchases());
+		appendPurchases(message, diff.getChangedPurchases());
+		appendSkuDetails(message, diff.getAddedSkuDetails());
+		appendSkuDetails(message, diff.getRemovedSkuDetails());
+		appendSkuDetails(message, diff.getChangedSkuDetails());
+		UnityPlayer.UnitySendMessage(mGameObject, "InventoryMessage", message.toString());
+	}
+
+	private static void appendPurchases(StringBuilder message, List<Purchase> purchases) {
+		message.append(',');
+		for (int i = 0; i < purchases.size(); i++) {
+			if (i > 0) {
+				message.append(';');
+			}
+			message.append(purchases.get(i).getSku());
+		}
+	}
+
+	private static void appendSkuDetails(StringBuilder message, List<SkuDetails> details) {
+		message.append(',');
+		for (int i = 0; i < details.size(); i++) {
+			if (i > 0) {
+				message.append(';');
+			}
+			message.append(details.get(i).getSku());
+		}
+	}
+
 	/**
 	 * 購入処理の結果を通知する.
 	 * @param productId アイテムID.
@@ -70,12 +152,12 @@ public class BillingPluginCallback {
 	 * @param payload verify用文字列.
 	 */
 	public void asyncPurchaseMessage(final String productId, final boolean success, final String payload) {
-		(new Thread(new Runnable() {
+		getExecutor().execute(new Runnable() {
 
 			@Override
 			public void run() {
 				UnityPlayer.UnitySendMessage(mGameObject, "PurchaseMessage", productId + "," + Boolean.toString(success) + "," + payload);
 			}
-		})).start();
+		});
 	}
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redoceanred.unity.android;
+
+import com.redoceanred.android.billing.util.IabHelper;
+import com.redoceanred.android.billing.util.IabResult;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * 課金サービスへの事前接続.
+ * Unityの起動を待たずにInAppBillingServiceへのbindとサポート確認を開始し、
+ * 接続済みの{@link IabHelper}を{@link BillingPlugin}の初期化まで保持する.
+ * 
+ * 有効にするにはAndroidManifest.xmlのBillingProxyActivityに以下を追加する.
+ * <pre>
+ * &lt;meta-data android:name="com.redoceanred.billing.WARM_UP" android:value="true" /&gt;
+ * </pre>
+ * 
+ * @author keiichiro
+ */
+public final class BillingWarmUp {
+
+	private static final String TAG = BillingWarmUp.class.getSimpleName();
+
+	/**
+	 * 事前接続を有効にするmeta-data名.
+	 */
+	public static final String META_DATA_WARM_UP = "com.redoceanred.billing.WARM_UP";
+
+	/**
+	 * 保持中のHelper.
+	 */
+	private static IabHelper sHelper;
+	/**
+	 * セットアップ結果.完了前はnull.
+	 */
+	private static IabResult sResult;
+	/**
+	 * セットアップ完了を待っている{@link BillingPlugin}のListener.
+	 */
+	private static IabHelper.OnIabSetupFinishedListener sListener;
+	/**
+	 * 保持中のHelperが{@link BillingPlugin}に受け取られたか.
+	 */
+	private static boolean sTaken;
+
+	private BillingWarmUp() {
+	}
+
+	/**
+	 * meta-dataで有効にされている場合、事前接続を開始する.
+	 * 
+	 * @param activity
+	 *            meta-dataを持つActivity.
+	 */
+	public static void startIfEnabled(Activity activity) {
+		try {
+			ActivityInfo info = activity.getPackageManager().getActivityInfo(activity.getComponentName(),
+					PackageManager.GET_META_DATA);
+			Bundle metaData = info.metaData;
+			if (metaData != null && metaData.getBoolean(META_DATA_WARM_UP, false)) {
+				start(activity);
+			}
+		} catch (PackageManager.NameNotFoundException e) {
+			Log.e(TAG, e.toString());
+		}
+	}
+
+	/**
+	 * 事前接続を開始する.既に開始している場合は何もしない.
+	 * 
+	 * @param context
+	 *            Context.
+	 */
+	public static synchronized void start(Context context) {
+		if (sHelper != null) {
+			return;
+		}
+		// 公開鍵はinitPlugin()で設定する.
+		sHelper = new IabHelper(context, null);
+		sHelper.startSetup(new IabHelper.OnIabSetupFinishedListener() {
+			public void onIabSetupFinished(IabResult result) {
+				setupFinished(result);
+			}
+		});
+	}
+
+	/**
+	 * 保持中のHelperを受け取る.受け取ったHelperは公開鍵等を設定後、
+	 * {@link #notifySetupFinished}でセットアップ完了を待つ.
+	 * 
+	 * @return 保持中のHelper.事前接続していない、または失敗した場合はnull.
+	 */
+	static synchronized IabHelper take() {
+		if (sHelper == null || sTaken) {
+			return null;
+		}
+		if (sResult != null && sResult.isFailure()) {
+			// 失敗した場合は通常の初期化でやり直す.
+			Log.d(TAG, "Warm-up failed: " + sResult);
+			sHelper.dispose();
+			sHelper = null;
+			sResult = null;
+			return null;
+		}
+		sTaken = true;
+		return sHelper;
+	}
+
+	/**
+	 * {@link #take}で受け取ったHelperのセットアップ完了時(完了済みの場合は直ちに)、
+	 * メインスレッドでlistenerを呼び出す.
+	 * 
+	 * @param listener
+	 *            セットアップ完了通知.
+	 */
+	static synchronized void notifySetupFinished(final IabHelper.OnIabSetupFinishedListener listener) {
+		if (!sTaken) {
+			return;
+		}
+		if (sResult == null) {
+			// 接続中.完了時に通知する.
+			sListener = listener;
+			return;
+		}
+		final IabResult result = sResult;
+		clear();
+		new Handler(Looper.getMainLooper()).post(new Runnable() {
+			public void run() {
+				listener.onIabSetupFinished(result);
+			}
+		});
+	}
+
+	/**
+	 * 受け取られていないHelperを破棄する.
+	 */
+	public static synchronized void dispose() {
+		if (sHelper != null && !sTaken) {
+			sHelper.dispose();
+		}
+		clear();
+	}
+
+	private static void clear() {
+		sHelper = null;
+		sResult = null;
+		sListener = null;
+		sTaken = false;
+	}
+
+	// セットアップ完了.(メインスレッド)
+	private static void setupFinished(IabResult result) {
+		IabHelper.OnIabSetupFinishedListener listener;
+		synchronized (BillingWarmUp.class) {
+			listener = sListener;
+			if (listener == null) {
+				// まだ受け取られていない、または通知先が未設定.
+				sResult = result;
+				return;
+			}
+			clear();
+		}
+		listener.onIabSetupFinished(result);
+	}
+}
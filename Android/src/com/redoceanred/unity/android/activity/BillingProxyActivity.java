@@ -24,12 +24,17 @@ import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.Bundle;
 
+import com.redoceanred.unity.android.BillingWarmUp;
+
 public class BillingProxyActivity extends Activity
 {
 	protected void onCreate (Bundle savedInstanceState)
 	{
 		super.onCreate(savedInstanceState);
 
+		// Start binding to the billing service while Unity loads, if enabled in the manifest.
+		BillingWarmUp.startIfEnabled(this);
+
 		// If the (Native)Activity is overridden these class names must match the new activities.
 		String classNames[] = { "com.redoceanred.unity.android.acivity.BillingActivity", "com.redoceanred.unity.android.activity.BillingNativeActivity" };
 
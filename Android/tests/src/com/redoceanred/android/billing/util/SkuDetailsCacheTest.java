@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013 nishino.keiichiro@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redoceanred.android.billing.util;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class SkuDetailsCacheTest extends TestCase {
+    private static final long FETCHED = 1000;
+    private static final long TTL = 1000;
+
+    private SkuDetails details(String sku, long fetchTime) {
+        SkuDetails details = new SkuDetails(IabHelper.ITEM_TYPE_INAPP, sku, "inapp", "$1.00",
+                "title", "description", "{\"productId\":\"" + sku + "\"}");
+        details.mFetchTime = fetchTime;
+        return details;
+    }
+
+    public void testPostponedEntryIsNotFresh() {
+        SkuDetailsCache cache = new SkuDetailsCache(10, 1024 * 1024, TTL);
+        cache.put(details("gas", FETCHED));
+        long now = FETCHED + TTL;
+        assertTrue(cache.isExpired("gas", now));
+
+        assertEquals(1, cache.postpone(Arrays.asList("gas"), now, now + 500));
+
+        // The refresh waits, but the details are still stale.
+        assertFalse(cache.isExpired("gas", now + 1));
+        assertTrue(cache.getExpiredSkus(now + 1).isEmpty());
+        assertNull(cache.getFresh("gas", IabHelper.ITEM_TYPE_INAPP, now + 1));
+        assertNotNull(cache.get("gas"));
+
+        assertTrue(cache.isExpired("gas", now + 500));
+    }
+
+    public void testRefreshedEntryIsFresh() {
+        SkuDetailsCache cache = new SkuDetailsCache(10, 1024 * 1024, TTL);
+        long now = FETCHED + TTL;
+        cache.put(details("gas", FETCHED));
+        cache.postpone(Arrays.asList("gas"), now, now + 500);
+
+        cache.put(details("gas", now));
+        assertFalse(cache.isExpired("gas", now + 1));
+        assertNotNull(cache.getFresh("gas", IabHelper.ITEM_TYPE_INAPP, now + 1));
+    }
+}
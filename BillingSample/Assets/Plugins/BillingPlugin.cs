@@ -209,6 +209,36 @@ public class BillingPlugin : MonoBehaviour
         }
     }
 
+    /**
+     * 最後に通知されたアイテム情報のハッシュ.
+     */
+    private string inventoryHash = null;
+
+    /**
+     * Callback処理.Java層から呼び出される.アイテム情報の変更内容が通知される.
+     * actionには"Inventory", payloadには"バージョン,ハッシュ,追加購入,削除購入,変更購入,追加詳細,削除詳細,変更詳細"が通知される.
+     * (各リストはアイテムIDを";"で連結したもの)ハッシュが前回と同じ場合は通知しない.
+     */
+    public void InventoryMessage(string message)
+    {
+        Debug.Log("InventoryMessage Called " + message);
+        string[] delimiter = { "," };
+        string[] splitMessage = message.Split(delimiter, System.StringSplitOptions.None);
+        if (splitMessage.Length > 1 && splitMessage[1] == inventoryHash)
+        {
+            // 変更なし.
+            return;
+        }
+        if (splitMessage.Length > 1)
+        {
+            inventoryHash = splitMessage[1];
+        }
+        if (callback != null)
+        {
+            callback("Inventory", true, message);
+        }
+    }
+
     /**
      * Callback処理.Java層から呼び出される.購入処理の結果が通知される.
      * actionには"Purchase", successには成否, productIdには購入したアイテムのIDが通知される.